@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Binding;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.spi.ConstructorBinding;
+import com.google.inject.spi.LinkedKeyBinding;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Loads classes on background threads so that class loading overlaps with the rest of the test setup.
+ *
+ * The classes are the well known classes of the frameworks that every service uses, the classes of all tweaked modules and the classes
+ * recorded by earlier runs. The class list is read from and written to the file named by the <code>ness.testing.preload-classes</code>
+ * system property, by default <code>target/ness-preload-classes.txt</code>.
+ *
+ * Only the well known framework classes are initialized. All other classes are loaded but not initialized, because running static
+ * initializers of unknown classes concurrently with the test thread can deadlock.
+ */
+final class ClassPreloader
+{
+    static final String CLASS_LIST_PROPERTY = "ness.testing.preload-classes";
+    static final String DEFAULT_CLASS_LIST = "target/ness-preload-classes.txt";
+
+    private static final Log LOG = Log.findLog();
+
+    private static final List<String> WELL_KNOWN_CLASSES = ImmutableList.of(
+        "com.google.inject.internal.InjectorImpl",
+        "com.google.inject.internal.InjectorShell",
+        "com.google.inject.spi.Elements",
+        "com.google.inject.servlet.GuiceFilter",
+        "org.eclipse.jetty.server.Server",
+        "org.eclipse.jetty.servlet.ServletContextHandler",
+        "org.eclipse.jetty.util.thread.QueuedThreadPool",
+        "com.sun.jersey.guice.spi.container.servlet.GuiceContainer",
+        "com.sun.jersey.server.impl.application.WebApplicationImpl",
+        "com.fasterxml.jackson.databind.ObjectMapper",
+        "com.fasterxml.jackson.databind.ser.BeanSerializerFactory",
+        "com.fasterxml.jackson.databind.deser.BeanDeserializerFactory");
+
+    /** Classes that have already been handed to the preloader in this JVM. */
+    private static final Set<String> SEEN_CLASSES = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)),
+                                                                                  new ThreadFactoryBuilder().setNameFormat("class-preloader-%d").setDaemon(true).build());
+
+    private ClassPreloader()
+    {
+    }
+
+    /**
+     * Starts loading the well known classes, the given classes and the recorded classes in the background. Returns immediately.
+     */
+    static void preload(final Collection<String> classNames)
+    {
+        submit(WELL_KNOWN_CLASSES, true);
+        submit(classNames, false);
+        submit(readClassList(), false);
+    }
+
+    /**
+     * Adds the classes used by the bindings of the given injectors to the class list for the next run.
+     */
+    static void record(final Collection<Injector> injectors)
+    {
+        final File classListFile = getClassListFile();
+        if (classListFile.getParentFile() != null && !classListFile.getParentFile().isDirectory()) {
+            return;
+        }
+
+        final Set<String> classNames = Sets.newTreeSet(readClassList());
+        final int previousSize = classNames.size();
+
+        for (final Injector injector : injectors) {
+            for (final Binding<?> binding : injector.getAllBindings().values()) {
+                addClassName(classNames, binding.getKey());
+                if (binding instanceof LinkedKeyBinding) {
+                    addClassName(classNames, ((LinkedKeyBinding<?>) binding).getLinkedKey());
+                }
+                else if (binding instanceof ConstructorBinding) {
+                    addClassName(classNames, ((ConstructorBinding<?>) binding).getConstructor().getDeclaringType().getRawType());
+                }
+            }
+        }
+
+        if (classNames.size() == previousSize) {
+            return;
+        }
+
+        try {
+            // Write to a temporary file and rename it, forked test JVMs may record at the same time.
+            final File tmpFile = new File(classListFile.getPath() + "." + System.nanoTime());
+            Files.write(Joiner.on('\n').join(classNames), tmpFile, Charsets.UTF_8);
+            if (!tmpFile.renameTo(classListFile)) {
+                tmpFile.delete();
+            }
+        }
+        catch (IOException ioe) {
+            LOG.infoDebug(ioe, "Could not write class list to %s", classListFile);
+        }
+    }
+
+    private static void addClassName(final Set<String> classNames, final Key<?> key)
+    {
+        addClassName(classNames, key.getTypeLiteral().getRawType());
+    }
+
+    private static void addClassName(final Set<String> classNames, final Class<?> clazz)
+    {
+        if (!clazz.isPrimitive() && !clazz.isArray() && !clazz.getName().startsWith("java.") && clazz.getClassLoader() != null) {
+            classNames.add(clazz.getName());
+        }
+    }
+
+    private static List<String> readClassList()
+    {
+        final File classListFile = getClassListFile();
+        if (!classListFile.isFile()) {
+            return ImmutableList.of();
+        }
+
+        try {
+            final List<String> classNames = Lists.newArrayList();
+            for (final String line : Files.readLines(classListFile, Charsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    classNames.add(line.trim());
+                }
+            }
+            return classNames;
+        }
+        catch (IOException ioe) {
+            LOG.infoDebug(ioe, "Could not read class list from %s", classListFile);
+            return ImmutableList.of();
+        }
+    }
+
+    private static File getClassListFile()
+    {
+        return new File(System.getProperty(CLASS_LIST_PROPERTY, DEFAULT_CLASS_LIST));
+    }
+
+    private static void submit(final Collection<String> classNames, final boolean initialize)
+    {
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader() != null ? Thread.currentThread().getContextClassLoader() : ClassPreloader.class.getClassLoader();
+
+        for (final String className : classNames) {
+            if (SEEN_CLASSES.add(className)) {
+                EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Class.forName(className, initialize, classLoader);
+                        }
+                        catch (Throwable t) {
+                            LOG.trace("Could not preload %s: %s", className, t);
+                        }
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.apache.commons.configuration.AbstractConfiguration;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import com.nesscomputing.config.Config;
+
+/**
+ * Counts configuration lookups per service, key and calling site. Enabled with {@link IntegrationTestRuleBuilder#setConfigProfiling(boolean)}.
+ *
+ * Every profiled configuration is wrapped in a read only layer that answers each lookup from the configuration below and
+ * records the lookup and its cost. Lookups that are done at startup, e.g. to build config beans, show up once per service;
+ * keys that are read over and over again are the ones that should be read once and cached.
+ */
+public final class ConfigAccessProfiler
+{
+    private static final Comparator<Access> BY_COUNT = new Comparator<Access>() {
+        @Override
+        public int compare(final Access a1, final Access a2) {
+            return Long.valueOf(a2.getCount()).compareTo(a1.getCount());
+        }
+    };
+
+    private final ConcurrentMap<List<String>, Access> accesses = new ConcurrentHashMap<List<String>, Access>();
+
+    ConfigAccessProfiler()
+    {
+    }
+
+    /**
+     * Returns a config that records all lookups for the given service.
+     */
+    Config profile(final String serviceName, final Config config)
+    {
+        // Layers added with getOverriddenConfig() are copied into a combined node tree and never asked for a value,
+        // so the counting layer must be the configuration itself.
+        return Config.getFixedConfig(new CountingConfiguration(serviceName, config.getConfiguration()));
+    }
+
+    /**
+     * Returns all recorded lookups, most frequent first.
+     */
+    public List<Access> getAccesses()
+    {
+        final List<Access> result = Lists.newArrayList(accesses.values());
+        Collections.sort(result, BY_COUNT);
+        return result;
+    }
+
+    /**
+     * Returns the most frequent lookups.
+     */
+    public List<Access> getHotKeys(final int count)
+    {
+        final List<Access> result = getAccesses();
+        return ImmutableList.copyOf(result.subList(0, Math.min(count, result.size())));
+    }
+
+    /**
+     * Returns the number of lookups of a key by a service from all calling sites.
+     */
+    public long getReads(@Nonnull final String serviceName, @Nonnull final String key)
+    {
+        long reads = 0;
+        for (final Access access : accesses.values()) {
+            if (access.getServiceName().equals(serviceName) && access.getKey().equals(key)) {
+                reads += access.getCount();
+            }
+        }
+        return reads;
+    }
+
+    /**
+     * Returns a human readable report of the most frequent lookups.
+     */
+    public String getReport(final int count)
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (final Access access : getHotKeys(count)) {
+            sb.append(access).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Forget all recorded lookups, e.g. after the startup.
+     */
+    public void reset()
+    {
+        accesses.clear();
+    }
+
+    private void record(final String serviceName, final String key, final String site, final long nanos)
+    {
+        final List<String> id = ImmutableList.of(serviceName, key, site);
+        Access access = accesses.get(id);
+        if (access == null) {
+            final Access newAccess = new Access(serviceName, key, site);
+            access = accesses.putIfAbsent(id, newAccess);
+            if (access == null) {
+                access = newAccess;
+            }
+        }
+        access.count.incrementAndGet();
+        access.nanos.addAndGet(nanos);
+    }
+
+    /**
+     * Returns the first stack frame outside of the configuration frameworks.
+     */
+    private static String findCallingSite()
+    {
+        for (final StackTraceElement element : new Throwable().getStackTrace()) {
+            final String className = element.getClassName();
+            if (!className.startsWith(ConfigAccessProfiler.class.getName())
+                && !className.startsWith("org.apache.commons.configuration.")
+                && !className.startsWith("com.nesscomputing.config.")
+                && !className.startsWith("org.skife.config.")
+                && !className.startsWith("java.")
+                && !className.startsWith("sun.")
+                && !className.startsWith("com.sun.proxy.")) {
+                return element.toString();
+            }
+        }
+        return "unknown";
+    }
+
+    /**
+     * Lookups of one key by one service from one calling site.
+     */
+    public static final class Access
+    {
+        private final String serviceName;
+        private final String key;
+        private final String site;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        Access(final String serviceName, final String key, final String site)
+        {
+            this.serviceName = serviceName;
+            this.key = key;
+            this.site = site;
+        }
+
+        public String getServiceName()
+        {
+            return serviceName;
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+
+        /** The calling stack frame. */
+        public String getSite()
+        {
+            return site;
+        }
+
+        public long getCount()
+        {
+            return count.get();
+        }
+
+        /** Total time spent in these lookups. */
+        public long getTime(final TimeUnit unit)
+        {
+            return unit.convert(nanos.get(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%8d reads %8d us  %s: %s at %s", getCount(), getTime(TimeUnit.MICROSECONDS), serviceName, key, site);
+        }
+    }
+
+    /**
+     * Answers every lookup from the wrapped configuration and records it.
+     */
+    private class CountingConfiguration extends AbstractConfiguration
+    {
+        private final String serviceName;
+        private final AbstractConfiguration delegate;
+
+        CountingConfiguration(final String serviceName, final AbstractConfiguration delegate)
+        {
+            this.serviceName = serviceName;
+            this.delegate = delegate;
+            setDelimiterParsingDisabled(delegate.isDelimiterParsingDisabled());
+            setListDelimiter(delegate.getListDelimiter());
+        }
+
+        @Override
+        public Object getProperty(final String key)
+        {
+            final long startNanos = System.nanoTime();
+            final Object value = delegate.getProperty(key);
+            final long nanos = System.nanoTime() - startNanos;
+            record(serviceName, key, findCallingSite(), nanos);
+            return value;
+        }
+
+        @Override
+        public boolean containsKey(final String key)
+        {
+            return delegate.containsKey(key);
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            return delegate.isEmpty();
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public Iterator getKeys()
+        {
+            return delegate.getKeys();
+        }
+
+        @Override
+        protected void addPropertyDirect(final String key, final Object value)
+        {
+            throw new UnsupportedOperationException("The profiling layer is read only!");
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Samples the threads of every service while the rule is active. The threads are attributed to services through the
+ * thread groups of {@link ServiceThreadGroups}. The monitor enables thread contention monitoring for its lifetime, so that blocked and waited
+ * times are available.
+ */
+final class ContentionMonitor
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 50;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final ServiceThreadGroups serviceThreadGroups;
+
+    private final ConcurrentMap<String, ServiceThreads> services = Maps.newConcurrentMap();
+
+    private volatile ScheduledExecutorService sampler = null;
+    private boolean contentionMonitoringWasEnabled = false;
+
+    ContentionMonitor(final ServiceThreadGroups serviceThreadGroups)
+    {
+        this.serviceThreadGroups = serviceThreadGroups;
+    }
+
+    synchronized void start()
+    {
+        if (sampler != null) {
+            return;
+        }
+
+        if (threadMXBean.isThreadContentionMonitoringSupported()) {
+            contentionMonitoringWasEnabled = threadMXBean.isThreadContentionMonitoringEnabled();
+            threadMXBean.setThreadContentionMonitoringEnabled(true);
+        }
+
+        sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("contention-monitor-%d").setDaemon(true).build());
+        sampler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sample();
+                }
+                catch (Throwable t) {
+                    LOG.warn(t, "Could not sample threads");
+                }
+            }
+        }, 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop()
+    {
+        if (sampler == null) {
+            return;
+        }
+
+        sampler.shutdownNow();
+        sampler = null;
+        sample();
+
+        if (threadMXBean.isThreadContentionMonitoringSupported() && !contentionMonitoringWasEnabled) {
+            threadMXBean.setThreadContentionMonitoringEnabled(false);
+        }
+    }
+
+    Map<String, ContentionReport> getReports()
+    {
+        final Map<String, ContentionReport> reports = Maps.newTreeMap();
+        for (final ServiceThreads serviceThreads : services.values()) {
+            reports.put(serviceThreads.serviceName, serviceThreads.getReport());
+        }
+        return reports;
+    }
+
+    private void sample()
+    {
+        final long [] deadlockedIds = threadMXBean.findDeadlockedThreads();
+        final Set<Long> deadlocked = Sets.newHashSet();
+        if (deadlockedIds != null) {
+            for (final long id : deadlockedIds) {
+                deadlocked.add(id);
+            }
+        }
+
+        for (final Map.Entry<String, ThreadGroup> entry : serviceThreadGroups.getThreadGroups().entrySet()) {
+            final List<Thread> threads = ServiceThreadGroups.getThreads(entry.getValue());
+            if (threads.isEmpty()) {
+                continue;
+            }
+
+            ServiceThreads serviceThreads = services.get(entry.getKey());
+            if (serviceThreads == null) {
+                serviceThreads = new ServiceThreads(entry.getKey());
+                services.put(entry.getKey(), serviceThreads);
+            }
+
+            final long [] ids = new long [threads.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = threads.get(i).getId();
+            }
+
+            for (final ThreadInfo threadInfo : threadMXBean.getThreadInfo(ids, 0)) {
+                if (threadInfo != null) {
+                    serviceThreads.record(threadInfo, deadlocked.contains(threadInfo.getThreadId()));
+                }
+            }
+        }
+    }
+
+    private static final class ServiceThreads
+    {
+        private final String serviceName;
+
+        /** Latest counters per thread id, also for threads that have ended. */
+        private final Map<Long, long []> threadCounters = Maps.newHashMap();
+        private final Map<Thread.State, Long> stateSamples = new EnumMap<Thread.State, Long>(Thread.State.class);
+        private final Map<String, Long> monitorSamples = Maps.newHashMap();
+        private final Map<Long, String> deadlocks = Maps.newLinkedHashMap();
+
+        private ServiceThreads(final String serviceName)
+        {
+            this.serviceName = serviceName;
+        }
+
+        private synchronized void record(final ThreadInfo threadInfo, final boolean deadlocked)
+        {
+            threadCounters.put(threadInfo.getThreadId(), new long [] { threadInfo.getBlockedCount(), threadInfo.getBlockedTime(),
+                                                                        threadInfo.getWaitedCount(), threadInfo.getWaitedTime() });
+
+            final Thread.State state = threadInfo.getThreadState();
+            stateSamples.put(state, (stateSamples.containsKey(state) ? stateSamples.get(state) : 0L) + 1);
+
+            // Idle pool threads wait on their queues all the time, only blocked threads are contending.
+            if (state == Thread.State.BLOCKED && threadInfo.getLockName() != null) {
+                final String lockName = threadInfo.getLockName();
+                monitorSamples.put(lockName, (monitorSamples.containsKey(lockName) ? monitorSamples.get(lockName) : 0L) + 1);
+            }
+
+            if (deadlocked && !deadlocks.containsKey(threadInfo.getThreadId())) {
+                deadlocks.put(threadInfo.getThreadId(), String.format("'%s' waits for %s held by '%s'",
+                                                                      threadInfo.getThreadName(), threadInfo.getLockName(), threadInfo.getLockOwnerName()));
+            }
+        }
+
+        private synchronized ContentionReport getReport()
+        {
+            long blockedCount = 0;
+            long blockedTime = 0;
+            long waitedCount = 0;
+            long waitedTime = 0;
+            for (final long [] counters : threadCounters.values()) {
+                blockedCount += counters[0];
+                blockedTime = counters[1] < 0 || blockedTime < 0 ? -1 : blockedTime + counters[1];
+                waitedCount += counters[2];
+                waitedTime = counters[3] < 0 || waitedTime < 0 ? -1 : waitedTime + counters[3];
+            }
+
+            final List<Map.Entry<String, Long>> monitors = Lists.newArrayList(monitorSamples.entrySet());
+            Collections.sort(monitors, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(final Map.Entry<String, Long> e1, final Map.Entry<String, Long> e2) {
+                    return e2.getValue().compareTo(e1.getValue());
+                }
+            });
+            final Map<String, Long> contendedMonitors = Maps.newLinkedHashMap();
+            for (final Map.Entry<String, Long> monitor : monitors) {
+                contendedMonitors.put(monitor.getKey(), monitor.getValue());
+            }
+
+            return new ContentionReport(serviceName, threadCounters.size(), blockedCount, blockedTime, waitedCount, waitedTime,
+                                        stateSamples, contendedMonitors, Lists.newArrayList(deadlocks.values()));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Thread states and lock contention of the threads of one service, collected by the contention monitor.
+ *
+ * @see IntegrationTestRuleBuilder#setContentionMonitor(boolean)
+ */
+public final class ContentionReport
+{
+    private final String serviceName;
+    private final int threadCount;
+    private final long blockedCount;
+    private final long blockedTimeMillis;
+    private final long waitedCount;
+    private final long waitedTimeMillis;
+    private final Map<Thread.State, Long> stateSamples;
+    private final Map<String, Long> contendedMonitors;
+    private final List<String> deadlocks;
+
+    ContentionReport(final String serviceName,
+                     final int threadCount,
+                     final long blockedCount,
+                     final long blockedTimeMillis,
+                     final long waitedCount,
+                     final long waitedTimeMillis,
+                     final Map<Thread.State, Long> stateSamples,
+                     final Map<String, Long> contendedMonitors,
+                     final List<String> deadlocks)
+    {
+        this.serviceName = serviceName;
+        this.threadCount = threadCount;
+        this.blockedCount = blockedCount;
+        this.blockedTimeMillis = blockedTimeMillis;
+        this.waitedCount = waitedCount;
+        this.waitedTimeMillis = waitedTimeMillis;
+        this.stateSamples = ImmutableMap.copyOf(stateSamples);
+        this.contendedMonitors = ImmutableMap.copyOf(contendedMonitors);
+        this.deadlocks = ImmutableList.copyOf(deadlocks);
+    }
+
+    public String getServiceName()
+    {
+        return serviceName;
+    }
+
+    /**
+     * Number of threads of the service that were seen by the monitor.
+     */
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    /**
+     * Number of times threads of the service blocked to enter a monitor.
+     */
+    public long getBlockedCount()
+    {
+        return blockedCount;
+    }
+
+    /**
+     * Total time threads of the service blocked to enter a monitor, -1 if the JVM does not support contention monitoring.
+     */
+    public long getBlockedTimeMillis()
+    {
+        return blockedTimeMillis;
+    }
+
+    /**
+     * Number of times threads of the service waited for a notification.
+     */
+    public long getWaitedCount()
+    {
+        return waitedCount;
+    }
+
+    /**
+     * Total time threads of the service waited for a notification, -1 if the JVM does not support contention monitoring.
+     */
+    public long getWaitedTimeMillis()
+    {
+        return waitedTimeMillis;
+    }
+
+    /**
+     * Number of thread samples per thread state.
+     */
+    public Map<Thread.State, Long> getStateSamples()
+    {
+        return stateSamples;
+    }
+
+    /**
+     * The monitors that threads of the service were blocked on, with the number of samples, most contended first.
+     */
+    public Map<String, Long> getContendedMonitors()
+    {
+        return contendedMonitors;
+    }
+
+    /**
+     * Descriptions of the deadlocked threads of the service.
+     */
+    public List<String> getDeadlocks()
+    {
+        return deadlocks;
+    }
+
+    public boolean hasDeadlocks()
+    {
+        return !deadlocks.isEmpty();
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%s: %d threads, blocked %d times (%d ms), waited %d times (%d ms), states %s",
+                                serviceName, threadCount, blockedCount, blockedTimeMillis, waitedCount, waitedTimeMillis, stateSamples));
+        int count = 0;
+        for (final Map.Entry<String, Long> entry : contendedMonitors.entrySet()) {
+            if (count++ == 5) {
+                break;
+            }
+            sb.append(String.format("%n  %6d samples on %s", entry.getValue(), entry.getKey()));
+        }
+        for (final String deadlock : deadlocks) {
+            sb.append(String.format("%n  DEADLOCK %s", deadlock));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * CPU time and stack samples of the threads of one service.
+ *
+ * @see IntegrationTestRuleBuilder#setCpuProfiler(boolean)
+ */
+public final class CpuProfile
+{
+    private final String serviceName;
+    private final long cpuTimeNanos;
+    private final long samples;
+    private final Map<String, Long> collapsedStacks;
+
+    CpuProfile(final String serviceName, final long cpuTimeNanos, final long samples, final Map<String, Long> collapsedStacks)
+    {
+        this.serviceName = serviceName;
+        this.cpuTimeNanos = cpuTimeNanos;
+        this.samples = samples;
+        this.collapsedStacks = ImmutableMap.copyOf(collapsedStacks);
+    }
+
+    public String getServiceName()
+    {
+        return serviceName;
+    }
+
+    /**
+     * CPU time used by the threads of the service while the profiler was running.
+     */
+    public long getCpuTime(final TimeUnit unit)
+    {
+        return unit.convert(cpuTimeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Number of stack samples of running threads.
+     */
+    public long getSamples()
+    {
+        return samples;
+    }
+
+    /**
+     * The sampled stacks in collapsed format, frames from the thread entry point to the running method separated by semicolons,
+     * with the number of samples.
+     */
+    public Map<String, Long> getCollapsedStacks()
+    {
+        return collapsedStacks;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %d ms CPU, %d samples", serviceName, getCpuTime(TimeUnit.MILLISECONDS), samples);
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Samples the stacks and CPU times of the threads of every service while the rule is active and writes them as collapsed stacks,
+ * which flame graph tools read directly, plus a CPU time summary. The files go into the directory named by the
+ * <code>ness.testing.profile-dir</code> system property, by default <code>target/ness-profiles</code>.
+ */
+final class CpuProfiler
+{
+    static final String PROFILE_DIR_PROPERTY = "ness.testing.profile-dir";
+    static final String DEFAULT_PROFILE_DIR = "target/ness-profiles";
+
+    private static final Log LOG = Log.findLog();
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 10;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final ServiceThreadGroups serviceThreadGroups;
+
+    private final ConcurrentMap<String, ServiceSamples> services = Maps.newConcurrentMap();
+
+    private volatile ScheduledExecutorService sampler = null;
+
+    CpuProfiler(final ServiceThreadGroups serviceThreadGroups)
+    {
+        this.serviceThreadGroups = serviceThreadGroups;
+    }
+
+    synchronized void start()
+    {
+        if (sampler != null) {
+            return;
+        }
+
+        if (threadMXBean.isThreadCpuTimeSupported() && !threadMXBean.isThreadCpuTimeEnabled()) {
+            threadMXBean.setThreadCpuTimeEnabled(true);
+        }
+
+        sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("cpu-profiler-%d").setDaemon(true).build());
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sample();
+                }
+                catch (Throwable t) {
+                    LOG.warn(t, "Could not sample threads");
+                }
+            }
+        }, 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop()
+    {
+        if (sampler == null) {
+            return;
+        }
+
+        sampler.shutdownNow();
+        sampler = null;
+        sample();
+    }
+
+    Map<String, CpuProfile> getProfiles()
+    {
+        final Map<String, CpuProfile> profiles = Maps.newTreeMap();
+        for (final ServiceSamples serviceSamples : services.values()) {
+            profiles.put(serviceSamples.serviceName, serviceSamples.getProfile());
+        }
+        return profiles;
+    }
+
+    /**
+     * Writes one collapsed stack file per service and a CPU summary for the test.
+     */
+    void write(final String testName)
+    {
+        final File profileDir = new File(System.getProperty(PROFILE_DIR_PROPERTY, DEFAULT_PROFILE_DIR));
+        if (!profileDir.isDirectory() && !profileDir.mkdirs()) {
+            LOG.warn("Could not create %s, skipping CPU profiles", profileDir);
+            return;
+        }
+
+        final String fileName = testName.replaceAll("[^A-Za-z0-9._-]", "_");
+        final StringBuilder summary = new StringBuilder();
+        try {
+            for (final CpuProfile profile : getProfiles().values()) {
+                summary.append(String.format("%s\t%d ms\t%d samples%n", profile.getServiceName(), profile.getCpuTime(TimeUnit.MILLISECONDS), profile.getSamples()));
+
+                final StringBuilder collapsed = new StringBuilder();
+                for (final Map.Entry<String, Long> entry : profile.getCollapsedStacks().entrySet()) {
+                    collapsed.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+                }
+                Files.write(collapsed, new File(profileDir, fileName + "-" + profile.getServiceName().replaceAll("[^A-Za-z0-9._-]", "_") + ".collapsed"), Charsets.UTF_8);
+            }
+            Files.write(summary, new File(profileDir, fileName + "-cpu.txt"), Charsets.UTF_8);
+            LOG.info("CPU time per service for %s:%n%s", testName, summary);
+        }
+        catch (IOException ioe) {
+            LOG.warn(ioe, "Could not write CPU profiles to %s", profileDir);
+        }
+    }
+
+    private void sample()
+    {
+        for (final Map.Entry<String, ThreadGroup> entry : serviceThreadGroups.getThreadGroups().entrySet()) {
+            final List<Thread> threads = ServiceThreadGroups.getThreads(entry.getValue());
+            if (threads.isEmpty()) {
+                continue;
+            }
+
+            ServiceSamples serviceSamples = services.get(entry.getKey());
+            if (serviceSamples == null) {
+                serviceSamples = new ServiceSamples(entry.getKey());
+                services.put(entry.getKey(), serviceSamples);
+            }
+
+            final long [] ids = new long [threads.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = threads.get(i).getId();
+            }
+
+            for (final ThreadInfo threadInfo : threadMXBean.getThreadInfo(ids, Integer.MAX_VALUE)) {
+                if (threadInfo != null) {
+                    serviceSamples.record(threadInfo, threadMXBean.getThreadCpuTime(threadInfo.getThreadId()));
+                }
+            }
+        }
+    }
+
+    private static final class ServiceSamples
+    {
+        private final String serviceName;
+
+        /** CPU time per thread id when the thread was first seen and last seen. */
+        private final Map<Long, long []> threadCpuTimes = Maps.newHashMap();
+        private final Map<String, Long> collapsedStacks = Maps.newTreeMap();
+        private long samples = 0;
+
+        private ServiceSamples(final String serviceName)
+        {
+            this.serviceName = serviceName;
+        }
+
+        private synchronized void record(final ThreadInfo threadInfo, final long cpuTimeNanos)
+        {
+            // A thread that is RUNNABLE while it blocks in native code, e.g. reading from a socket, does not use any CPU. If the
+            // CPU time is available, only threads whose CPU time advanced since the last sample count as on CPU.
+            boolean onCpu = threadInfo.getThreadState() == Thread.State.RUNNABLE;
+            if (cpuTimeNanos >= 0) {
+                final long [] cpuTimes = threadCpuTimes.get(threadInfo.getThreadId());
+                if (cpuTimes == null) {
+                    threadCpuTimes.put(threadInfo.getThreadId(), new long [] { cpuTimeNanos, cpuTimeNanos });
+                    onCpu = false;
+                }
+                else {
+                    onCpu = cpuTimeNanos > cpuTimes[1];
+                    cpuTimes[1] = cpuTimeNanos;
+                }
+            }
+
+            final StackTraceElement [] stackTrace = threadInfo.getStackTrace();
+            if (!onCpu || stackTrace.length == 0) {
+                return;
+            }
+
+            final StringBuilder sb = new StringBuilder();
+            for (int i = stackTrace.length - 1; i >= 0; i--) {
+                sb.append(stackTrace[i].getClassName()).append('.').append(stackTrace[i].getMethodName());
+                if (i > 0) {
+                    sb.append(';');
+                }
+            }
+            final String stack = sb.toString();
+            collapsedStacks.put(stack, (collapsedStacks.containsKey(stack) ? collapsedStacks.get(stack) : 0L) + 1);
+            samples++;
+        }
+
+        private synchronized CpuProfile getProfile()
+        {
+            long cpuTimeNanos = 0;
+            for (final long [] cpuTimes : threadCpuTimes.values()) {
+                cpuTimeNanos += cpuTimes[1] - cpuTimes[0];
+            }
+            return new CpuProfile(serviceName, cpuTimeNanos, samples, collapsedStacks);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of the environment of an integration test rule, exported to the platform MBean server when the services export their
+ * beans there.
+ *
+ * @see IntegrationTestRuleBuilder#setPlatformJmx(boolean)
+ */
+public interface EnvironmentMXBean
+{
+    /** The test that the environment runs for. */
+    String getTestName();
+
+    /** Time since the services have started. */
+    long getUptimeMillis();
+
+    /** All service instances in the test JVM, additional replicas as <code>&lt;name&gt;#&lt;n&gt;</code>. */
+    List<String> getServices();
+
+    /** All services in forked JVMs. */
+    List<String> getForkedServices();
+
+    /** Time to create the injector and start the lifecycle of every service instance in the test JVM. */
+    Map<String, Long> getStartupMillis();
+
+    /** Requests of the test case http client that are waiting for a response. */
+    int getActiveTestClientRequests();
+
+    /** Requests that throttled services are handling right now. */
+    Map<String, Integer> getActiveServiceRequests();
+
+    /** Running and pending tasks of every busy tracked executor. */
+    Map<String, Integer> getBusyExecutors();
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import com.google.inject.Binder;
+import com.google.inject.Module;
+import com.google.inject.name.Names;
+
+import com.nesscomputing.testing.tweaked.ExecutorTracker;
+import com.nesscomputing.testing.tweaked.HttpClientStats;
+import com.nesscomputing.testing.tweaked.InMemoryServiceRegistry;
+import com.nesscomputing.testing.tweaked.PlatformMBeanServers;
+import com.nesscomputing.testing.tweaked.TraceCollector;
+import com.nesscomputing.testing.tweaked.VirtualClock;
+
+/**
+ * Binds the objects that are shared by all injectors of a single integration test rule.
+ */
+class EnvironmentModule implements Module
+{
+    private final IntegrationTestRule rule;
+    private final String injectorName;
+
+    /**
+     * @param injectorName the key of the service injector, or the test case name.
+     */
+    EnvironmentModule(final IntegrationTestRule rule, final String injectorName)
+    {
+        this.rule = rule;
+        this.injectorName = injectorName;
+    }
+
+    @Override
+    public void configure(final Binder binder)
+    {
+        binder.bind(InMemoryServiceRegistry.class).toInstance(rule.getServiceRegistry());
+        binder.bind(TraceCollector.class).toInstance(rule.getTraceCollector());
+        binder.bind(HttpClientStats.class).toInstance(rule.getTestClientStats());
+        binder.bind(VirtualClock.class).toInstance(rule.getVirtualClock().forInjector(injectorName));
+        binder.bind(ExecutorTracker.class).toInstance(rule.getExecutorTracker().forInjector(injectorName));
+        binder.bind(PlatformMBeanServers.class).toInstance(rule.getPlatformMBeanServers());
+        binder.bindConstant().annotatedWith(Names.named(PlatformMBeanServers.INJECTOR_NAME)).to(injectorName);
+    }
+}
@@ -0,0 +1,445 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Key;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Streams newline separated records from files into a service. The files are memory mapped window by window, cut into batches
+ * and handed to a number of loader threads through a bounded queue. When the service falls behind, the queue fills up and the
+ * reader waits, so the memory used does not depend on the size of the files.
+ *
+ * The batches go either to an http endpoint of the service (one POST per batch, records separated by newlines) or to a
+ * {@link FixtureSink} inside the service.
+ *
+ * @see IntegrationTestRule#getFixtureLoader(String)
+ */
+public final class FixtureLoader
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int HTTP_TIMEOUT_MILLIS = 60000;
+
+    /** Tells a loader thread to stop. */
+    private static final List<ByteBuffer> END_OF_RECORDS = Collections.emptyList();
+
+    private final IntegrationTestRule rule;
+    private final String serviceName;
+
+    private int batchSize = 1000;
+    private int parallelism = 4;
+    private int queueCapacity = 8;
+    private String httpPath = null;
+    private String contentType = "text/plain";
+    private Key<? extends FixtureSink> sinkKey = null;
+    private FixtureSink sink = null;
+
+    FixtureLoader(final IntegrationTestRule rule, final String serviceName)
+    {
+        this.rule = rule;
+        this.serviceName = serviceName;
+    }
+
+    /**
+     * POST every batch to a path of the service. The path is relative to the root of the server, a missing leading slash is added.
+     */
+    public FixtureLoader toHttpPath(@Nonnull final String httpPath, @Nonnull final String contentType)
+    {
+        Preconditions.checkNotNull(httpPath, "The path must not be null!");
+        Preconditions.checkNotNull(contentType, "The content type must not be null!");
+        // The service URI has an empty path, resolving a relative path against it would append it to the port.
+        this.httpPath = httpPath.startsWith("/") ? httpPath : "/" + httpPath;
+        this.contentType = contentType;
+        this.sinkKey = null;
+        this.sink = null;
+        return this;
+    }
+
+    /**
+     * Hand every batch to a sink bound in the service. The service must run in the test JVM.
+     */
+    public FixtureLoader toSink(@Nonnull final Key<? extends FixtureSink> sinkKey)
+    {
+        Preconditions.checkNotNull(sinkKey, "The sink key must not be null!");
+        this.sinkKey = sinkKey;
+        this.httpPath = null;
+        this.sink = null;
+        return this;
+    }
+
+    /**
+     * Hand every batch to a sink bound in the service. The service must run in the test JVM.
+     */
+    public FixtureLoader toSink()
+    {
+        return toSink(Key.get(FixtureSink.class));
+    }
+
+    /**
+     * Hand every batch to the given sink.
+     */
+    public FixtureLoader toSink(@Nonnull final FixtureSink sink)
+    {
+        Preconditions.checkNotNull(sink, "The sink must not be null!");
+        this.sink = sink;
+        this.sinkKey = null;
+        this.httpPath = null;
+        return this;
+    }
+
+    /**
+     * Set the number of records per batch. Default is 1000.
+     */
+    public FixtureLoader setBatchSize(final int batchSize)
+    {
+        Preconditions.checkArgument(batchSize > 0, "The batch size must be positive!");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Set the number of threads that send batches at the same time. Default is 4.
+     */
+    public FixtureLoader setParallelism(final int parallelism)
+    {
+        Preconditions.checkArgument(parallelism > 0, "The parallelism must be positive!");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Set the number of batches that may wait for a loader thread. Default is 8.
+     */
+    public FixtureLoader setQueueCapacity(final int queueCapacity)
+    {
+        Preconditions.checkArgument(queueCapacity > 0, "The queue capacity must be positive!");
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * Loads all records of the given files and waits until the service has accepted them.
+     *
+     * @throws IllegalStateException if no target was set.
+     * @throws RuntimeException with the first error of the pipeline.
+     */
+    public Result load(@Nonnull final File ... files)
+    {
+        final FixtureSink target = getTarget();
+
+        final BlockingQueue<List<ByteBuffer>> queue = new ArrayBlockingQueue<List<ByteBuffer>>(queueCapacity);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicLong records = new AtomicLong();
+        final AtomicLong batches = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        final long startNanos = System.nanoTime();
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder().setNameFormat("fixture-loader-" + serviceName + "-%d").setDaemon(true).build());
+        try {
+            for (int i = 0; i < parallelism; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            List<ByteBuffer> batch;
+                            while ((batch = queue.take()) != END_OF_RECORDS) {
+                                if (failure.get() == null) {
+                                    target.load(batch);
+                                    batches.incrementAndGet();
+                                }
+                            }
+                        }
+                        catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                            queue.clear();
+                        }
+                    }
+                });
+            }
+
+            try {
+                for (final File file : files) {
+                    read(file, queue, failure, records, bytes);
+                }
+            }
+            finally {
+                for (int i = 0; i < parallelism; i++) {
+                    if (!offer(queue, END_OF_RECORDS, failure)) {
+                        break;
+                    }
+                }
+            }
+
+            // A failed loader thread may have thrown away some of the end markers, so stop waiting on failure.
+            executor.shutdown();
+            while (failure.get() == null && !executor.awaitTermination(100, TimeUnit.MILLISECONDS)) {
+                continue;
+            }
+        }
+        catch (IOException ioe) {
+            failure.compareAndSet(null, ioe);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, ie);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        if (failure.get() != null) {
+            throw Throwables.propagate(failure.get());
+        }
+
+        final Result result = new Result(records.get(), batches.get(), bytes.get(), System.nanoTime() - startNanos);
+        LOG.debug("Loaded %s into '%s'", result, serviceName);
+        return result;
+    }
+
+    private FixtureSink getTarget()
+    {
+        if (sink != null) {
+            return sink;
+        }
+        else if (sinkKey != null) {
+            return rule.exposeBinding(serviceName, sinkKey);
+        }
+        else {
+            Preconditions.checkState(httpPath != null, "No http path or sink set for service '%s'!", serviceName);
+            return new HttpSink();
+        }
+    }
+
+    /**
+     * Maps the file window by window and queues its records in batches. Waits whenever the queue is full.
+     */
+    private void read(final File file, final BlockingQueue<List<ByteBuffer>> queue, final AtomicReference<Throwable> failure,
+                      final AtomicLong records, final AtomicLong bytes)
+        throws IOException, InterruptedException
+    {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final long size = channel.size();
+
+            List<ByteBuffer> batch = Lists.newArrayListWithCapacity(batchSize);
+            long position = 0;
+            while (position < size) {
+                final long windowSize = Math.min(WINDOW_SIZE, size - position);
+                final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                final boolean lastWindow = position + windowSize == size;
+
+                int recordStart = 0;
+                for (int i = 0; i < windowSize; i++) {
+                    if (window.get(i) == '\n') {
+                        batch = addRecord(window, recordStart, i, batch, queue, failure, records, bytes);
+                        recordStart = i + 1;
+                    }
+                }
+
+                if (lastWindow) {
+                    batch = addRecord(window, recordStart, (int) windowSize, batch, queue, failure, records, bytes);
+                    position = size;
+                }
+                else {
+                    if (recordStart == 0) {
+                        throw new IOException(String.format("%s contains a record larger than %d bytes!", file, WINDOW_SIZE));
+                    }
+                    // The next window starts with the record that was cut off.
+                    position += recordStart;
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                offer(queue, batch, failure);
+            }
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private List<ByteBuffer> addRecord(final ByteBuffer window, final int start, final int end, final List<ByteBuffer> batch,
+                                       final BlockingQueue<List<ByteBuffer>> queue, final AtomicReference<Throwable> failure,
+                                       final AtomicLong records, final AtomicLong bytes)
+        throws InterruptedException
+    {
+        int recordEnd = end;
+        if (recordEnd > start && window.get(recordEnd - 1) == '\r') {
+            recordEnd--;
+        }
+        if (recordEnd == start) {
+            return batch;
+        }
+
+        final ByteBuffer record = window.duplicate();
+        record.limit(recordEnd).position(start);
+        batch.add(record.slice().asReadOnlyBuffer());
+        records.incrementAndGet();
+        bytes.addAndGet(recordEnd - start);
+
+        if (batch.size() < batchSize) {
+            return batch;
+        }
+
+        offer(queue, batch, failure);
+        return Lists.newArrayListWithCapacity(batchSize);
+    }
+
+    /**
+     * Puts a batch into the queue, waiting for space. Returns false without queueing if the pipeline has failed.
+     */
+    private static boolean offer(final BlockingQueue<List<ByteBuffer>> queue, final List<ByteBuffer> batch, final AtomicReference<Throwable> failure)
+        throws InterruptedException
+    {
+        while (failure.get() == null) {
+            if (queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends a batch as the body of a POST request.
+     */
+    private class HttpSink implements FixtureSink
+    {
+        @Override
+        public void load(final List<ByteBuffer> records) throws IOException
+        {
+            long length = 0;
+            for (final ByteBuffer record : records) {
+                length += record.remaining() + 1;
+            }
+
+            final HttpURLConnection connection = (HttpURLConnection) rule.locateService(serviceName).resolve(httpPath).toURL().openConnection();
+            try {
+                connection.setConnectTimeout(HTTP_TIMEOUT_MILLIS);
+                connection.setReadTimeout(HTTP_TIMEOUT_MILLIS);
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", contentType);
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(length);
+
+                final OutputStream outputStream = connection.getOutputStream();
+                try {
+                    final WritableByteChannel channel = Channels.newChannel(outputStream);
+                    final ByteBuffer separator = ByteBuffer.wrap(new byte [] { '\n' });
+                    for (final ByteBuffer record : records) {
+                        final ByteBuffer data = record.duplicate();
+                        while (data.hasRemaining()) {
+                            channel.write(data);
+                        }
+                        separator.rewind();
+                        channel.write(separator);
+                    }
+                }
+                finally {
+                    outputStream.close();
+                }
+
+                final int status = connection.getResponseCode();
+                if (status < 200 || status >= 300) {
+                    throw new IOException(String.format("Service '%s' returned %d for %s", serviceName, status, httpPath));
+                }
+            }
+            finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Counters of a completed load.
+     */
+    public static final class Result
+    {
+        private final long records;
+        private final long batches;
+        private final long bytes;
+        private final long durationNanos;
+
+        Result(final long records, final long batches, final long bytes, final long durationNanos)
+        {
+            this.records = records;
+            this.batches = batches;
+            this.bytes = bytes;
+            this.durationNanos = durationNanos;
+        }
+
+        public long getRecords()
+        {
+            return records;
+        }
+
+        public long getBatches()
+        {
+            return batches;
+        }
+
+        /** Number of record bytes, without line separators. */
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public long getDuration(final TimeUnit unit)
+        {
+            return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public double getRecordsPerSecond()
+        {
+            return durationNanos <= 0 ? 0.0 : records * 1.0e9 / durationNanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d records in %d batches (%d bytes) in %d ms", records, batches, bytes, getDuration(TimeUnit.MILLISECONDS));
+        }
+    }
+}
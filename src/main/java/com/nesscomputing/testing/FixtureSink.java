@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Receives batches of fixture records from a {@link FixtureLoader}. A service can bind an implementation so that the loader
+ * hands the records over in-process instead of over http.
+ */
+public interface FixtureSink
+{
+    /**
+     * Loads a batch of records. The buffers are read-only views of the fixture file without the line separators and are only
+     * valid during the call. Calls may happen concurrently from several loader threads.
+     */
+    void load(List<ByteBuffer> records) throws Exception;
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Heap and GC statistics of the JVM that runs a forked service.
+ */
+public final class ForkedJvmStatistics
+{
+    private static final Joiner.MapJoiner JOINER = Joiner.on(',').withKeyValueSeparator("=");
+    private static final Splitter.MapSplitter SPLITTER = Splitter.on(',').withKeyValueSeparator("=");
+
+    private final long heapUsed;
+    private final long heapCommitted;
+    private final long heapMax;
+    private final long gcCount;
+    private final long gcTimeMillis;
+    private final int threadCount;
+
+    ForkedJvmStatistics(final long heapUsed,
+                        final long heapCommitted,
+                        final long heapMax,
+                        final long gcCount,
+                        final long gcTimeMillis,
+                        final int threadCount)
+    {
+        this.heapUsed = heapUsed;
+        this.heapCommitted = heapCommitted;
+        this.heapMax = heapMax;
+        this.gcCount = gcCount;
+        this.gcTimeMillis = gcTimeMillis;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Returns the statistics of the running JVM.
+     */
+    static ForkedJvmStatistics forCurrentJvm()
+    {
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+        long gcCount = 0;
+        long gcTimeMillis = 0;
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcTimeMillis += Math.max(0, gc.getCollectionTime());
+        }
+
+        return new ForkedJvmStatistics(heap.getUsed(), heap.getCommitted(), heap.getMax(), gcCount, gcTimeMillis, ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    /**
+     * Parses the string returned by {@link ForkedJvmStatistics#format()}.
+     */
+    static ForkedJvmStatistics parse(final String value)
+    {
+        final Map<String, String> values = SPLITTER.split(value);
+        return new ForkedJvmStatistics(Long.parseLong(values.get("heapUsed")),
+                                       Long.parseLong(values.get("heapCommitted")),
+                                       Long.parseLong(values.get("heapMax")),
+                                       Long.parseLong(values.get("gcCount")),
+                                       Long.parseLong(values.get("gcTimeMillis")),
+                                       Integer.parseInt(values.get("threadCount")));
+    }
+
+    String format()
+    {
+        return JOINER.join(ImmutableMap.builder()
+                           .put("heapUsed", heapUsed)
+                           .put("heapCommitted", heapCommitted)
+                           .put("heapMax", heapMax)
+                           .put("gcCount", gcCount)
+                           .put("gcTimeMillis", gcTimeMillis)
+                           .put("threadCount", threadCount)
+                           .build());
+    }
+
+    /** Heap memory in use, in bytes. */
+    public long getHeapUsed()
+    {
+        return heapUsed;
+    }
+
+    /** Heap memory committed by the JVM, in bytes. */
+    public long getHeapCommitted()
+    {
+        return heapCommitted;
+    }
+
+    /** Maximum heap memory, in bytes. -1 if undefined. */
+    public long getHeapMax()
+    {
+        return heapMax;
+    }
+
+    /** Number of garbage collections, summed over all collectors. */
+    public long getGcCount()
+    {
+        return gcCount;
+    }
+
+    /** Time spent in garbage collection, summed over all collectors. */
+    public long getGcTimeMillis()
+    {
+        return gcTimeMillis;
+    }
+
+    /** Number of live threads. */
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ForkedJvmStatistics[" + format() + "]";
+    }
+}
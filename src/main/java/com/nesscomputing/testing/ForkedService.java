@@ -0,0 +1,456 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.configuration.AbstractConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.PropertyConverter;
+
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.logging.Log;
+import com.nesscomputing.testing.tweaked.TweakedModule;
+import com.nesscomputing.testing.tweaked.TweakedModuleSpecs;
+
+/**
+ * Controls a service that runs in a child JVM on the local machine. The child runs {@link ForkedServiceMain} and is controlled
+ * through its stdin and stdout. The service definition is sent as a properties file, then commands are sent line by line. The
+ * child answers with lines starting with {@link ForkedService#PROTOCOL_PREFIX}, all other output of the child is logged.
+ *
+ * Every command starts with a request id, which the child repeats in its answer, so that a late answer to a request that
+ * timed out is never taken for the answer to the next one. The answer to the service definition has the id {@link #STARTUP_ID}.
+ */
+final class ForkedService
+{
+    static final String PROTOCOL_PREFIX = "@@ness-fork ";
+    static final String SPEC_END = PROTOCOL_PREFIX + "end";
+
+    static final String READY = "ready";
+    static final String FAILED = "failed";
+    static final String STATS = "stats";
+    static final String STOP = "stop";
+    static final String STOPPED = "stopped";
+    static final String NO_URI = "-";
+
+    static final String STARTUP_ID = "0";
+    /** Id of an answer that ends every outstanding request, e.g. because the child exited. */
+    static final String ANY_ID = "*";
+
+    static final String SERVICE_NAME = "service.name";
+    static final String SERVICE_MODULE = "service.module";
+    static final String MODULE_PREFIX = "module.";
+    static final String CONFIG_PREFIX = "config.";
+    static final String START_STAGE = "stage.start";
+    static final String STOP_STAGE = "stage.stop";
+
+    private static final Log LOG = Log.findLog();
+
+    private static final long EXIT_POLL_MILLIS = 10;
+
+    private final String serviceName;
+    private final Properties spec;
+    private final ServiceOptions serviceOptions;
+
+    private volatile Process process = null;
+    private volatile BlockingQueue<String> responses = null;
+    private volatile Writer commands = null;
+    private volatile URI serviceUri = null;
+
+    private long lastRequestId = 0;
+
+    static ForkedService forService(final String serviceName,
+                                    final Config serviceConfig,
+                                    final List<TweakedModule> tweakedModules,
+                                    final TweakedModule serviceTweakedModule,
+                                    final LifecycleStage startStage,
+                                    final LifecycleStage stopStage,
+                                    final ServiceOptions serviceOptions)
+    {
+        final Properties spec = new Properties();
+        spec.setProperty(SERVICE_NAME, serviceName);
+        spec.setProperty(SERVICE_MODULE, TweakedModuleSpecs.toSpec(serviceTweakedModule));
+        spec.setProperty(START_STAGE, startStage.getName());
+        spec.setProperty(STOP_STAGE, stopStage.getName());
+
+        int index = 0;
+        for (final TweakedModule tweakedModule : tweakedModules) {
+            final String moduleSpec = TweakedModuleSpecs.toSpec(tweakedModule);
+            if (moduleSpec == null) {
+                LOG.warn("Tweaked module %s can not be recreated and will not be available in forked service '%s'!", tweakedModule, serviceName);
+            }
+            else {
+                spec.setProperty(MODULE_PREFIX + index++, moduleSpec);
+            }
+        }
+
+        // The child reads the values into a MapConfiguration, which splits them at the list delimiter. Escape the delimiter in every
+        // value and join the values of multi-valued keys with it, so that the child sees the same values.
+        final Configuration configuration = serviceConfig.getConfiguration();
+        final String delimiter = String.valueOf(AbstractConfiguration.getDefaultListDelimiter());
+        for (final Iterator<?> it = configuration.getKeys(); it.hasNext(); ) {
+            final String key = it.next().toString();
+            final List<String> values = Lists.newArrayList();
+            for (final Object value : configuration.getList(key)) {
+                values.add(PropertyConverter.escapeDelimiters(String.valueOf(value), AbstractConfiguration.getDefaultListDelimiter()));
+            }
+            spec.setProperty(CONFIG_PREFIX + key, Joiner.on(delimiter).join(values));
+        }
+
+        return new ForkedService(serviceName, spec, serviceOptions);
+    }
+
+    private ForkedService(final String serviceName, final Properties spec, final ServiceOptions serviceOptions)
+    {
+        this.serviceName = serviceName;
+        this.spec = spec;
+        this.serviceOptions = serviceOptions;
+    }
+
+    String getServiceName()
+    {
+        return serviceName;
+    }
+
+    /**
+     * Launches the child JVM and waits until the service has reached its start stage.
+     */
+    void start() throws IOException
+    {
+        final List<String> command = Lists.newArrayList();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(serviceOptions.getJvmArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ForkedServiceMain.class.getName());
+
+        LOG.debug("Starting forked service '%s': %s", serviceName, command);
+
+        process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        boolean started = false;
+        try {
+            startProcess();
+            started = true;
+        }
+        finally {
+            // A child that did not report ready can not be stopped through the protocol.
+            if (!started) {
+                process.destroy();
+                process = null;
+            }
+        }
+    }
+
+    private void startProcess() throws IOException
+    {
+        final Process child = process;
+        commands = new OutputStreamWriter(child.getOutputStream(), Charsets.UTF_8);
+
+        // Every child gets its own queue, so that the exit of an earlier child is not read as the answer of this one.
+        final BlockingQueue<String> childResponses = new LinkedBlockingQueue<String>();
+        responses = childResponses;
+
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readResponses(child, childResponses);
+            }
+        }, "forked-service-" + serviceName);
+        reader.setDaemon(true);
+        reader.start();
+
+        final StringWriter specWriter = new StringWriter();
+        spec.store(specWriter, null);
+        commands.write(specWriter.toString());
+        commands.write(SPEC_END + "\n");
+        commands.flush();
+
+        final String response = awaitResponse(STARTUP_ID, serviceOptions.getStartupTimeoutMillis());
+        if (!response.startsWith(READY)) {
+            throw new IllegalStateException(String.format("Forked service '%s' did not start: %s", serviceName, response));
+        }
+
+        final String uri = response.substring(READY.length()).trim();
+        serviceUri = NO_URI.equals(uri) ? null : URI.create(uri);
+    }
+
+    /**
+     * Returns the URI of the HTTP server of the forked service or null if it has none.
+     */
+    URI findServiceUri()
+    {
+        return serviceUri;
+    }
+
+    ForkedJvmStatistics getStatistics()
+    {
+        final String response = request(STATS, serviceOptions.getStartupTimeoutMillis());
+        if (!response.startsWith(STATS)) {
+            throw new IllegalStateException(String.format("Forked service '%s' did not return statistics: %s", serviceName, response));
+        }
+        return ForkedJvmStatistics.parse(response.substring(STATS.length()).trim());
+    }
+
+    /**
+     * Executes the stop stage in the child JVM and waits for it to exit.
+     */
+    void stop()
+    {
+        if (process == null) {
+            return;
+        }
+
+        try {
+            // The forked service first drains the requests it is handling.
+            final String response = request(STOP, serviceOptions.getStartupTimeoutMillis() + InFlightRequestFilter.DRAIN_TIMEOUT_MILLIS);
+            if (!STOPPED.equals(response)) {
+                LOG.warn("Forked service '%s' did not stop cleanly: %s", serviceName, response);
+            }
+            if (!awaitExit(process, serviceOptions.getStartupTimeoutMillis())) {
+                LOG.warn("Forked service '%s' did not exit within %d ms, killing it", serviceName, serviceOptions.getStartupTimeoutMillis());
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        catch (RuntimeException re) {
+            LOG.warn(re, "While stopping forked service '%s'", serviceName);
+        }
+        finally {
+            process.destroy();
+            process = null;
+        }
+    }
+
+    private synchronized String request(final String command, final long timeoutMillis)
+    {
+        final String requestId = Long.toString(++lastRequestId);
+        try {
+            commands.write(requestId + " " + command + "\n");
+            commands.flush();
+            return awaitResponse(requestId, timeoutMillis);
+        }
+        catch (IOException ioe) {
+            throw Throwables.propagate(ioe);
+        }
+    }
+
+    /**
+     * Waits for the answer with the given request id. Answers to earlier requests that timed out are dropped.
+     */
+    private String awaitResponse(final String requestId, final long timeoutMillis)
+    {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (true) {
+                final String response = responses.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (response == null) {
+                    throw new IllegalStateException(String.format("Forked service '%s' did not answer within %d ms!", serviceName, timeoutMillis));
+                }
+
+                final int separator = response.indexOf(' ');
+                final String responseId = separator < 0 ? response : response.substring(0, separator);
+                if (requestId.equals(responseId) || ANY_ID.equals(responseId)) {
+                    return separator < 0 ? "" : response.substring(separator + 1);
+                }
+                LOG.debug("Dropping stale answer of forked service '%s': %s", serviceName, response);
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(ie);
+        }
+    }
+
+    /**
+     * Waits until a child JVM has exited. Process has no timed wait before Java 8.
+     *
+     * @return true if the child exited, false if the timeout expired.
+     */
+    private static boolean awaitExit(final Process child, final long timeoutMillis) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            try {
+                child.exitValue();
+                return true;
+            }
+            catch (IllegalThreadStateException itse) {
+                if (System.nanoTime() - deadline >= 0) {
+                    return false;
+                }
+                Thread.sleep(EXIT_POLL_MILLIS);
+            }
+        }
+    }
+
+    private void readResponses(final Process child, final BlockingQueue<String> childResponses)
+    {
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(child.getInputStream(), Charsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(PROTOCOL_PREFIX)) {
+                    childResponses.add(line.substring(PROTOCOL_PREFIX.length()));
+                }
+                else {
+                    LOG.info("[%s] %s", serviceName, line);
+                }
+            }
+        }
+        catch (IOException ioe) {
+            LOG.debug(ioe, "Output of forked service '%s' closed", serviceName);
+        }
+        childResponses.add(ANY_ID + " " + FAILED + " process exited");
+    }
+
+    /**
+     * Starts all forked services in parallel and waits until all of them are running. If one of them fails, the start of the others is
+     * not interrupted, and all of them are stopped before the failure is rethrown.
+     */
+    static void startAll(final Collection<ForkedService> forkedServices)
+    {
+        try {
+            runAll(forkedServices, true);
+        }
+        catch (RuntimeException re) {
+            stopAll(forkedServices);
+            throw re;
+        }
+    }
+
+    /**
+     * Stops all forked services in parallel.
+     */
+    static void stopAll(final Collection<ForkedService> forkedServices)
+    {
+        runAll(forkedServices, false);
+    }
+
+    private static void runAll(final Collection<ForkedService> forkedServices, final boolean start)
+    {
+        if (forkedServices.isEmpty()) {
+            return;
+        }
+
+        final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("forked-service-control-%d").setDaemon(true).build());
+        try {
+            final List<Future<Void>> futures = Lists.newArrayList();
+            for (final ForkedService forkedService : forkedServices) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        if (start) {
+                            forkedService.start();
+                        }
+                        else {
+                            forkedService.stop();
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            // Wait for all of them, a child JVM that is still starting must not be left behind.
+            Throwable failure = null;
+            for (final Future<Void> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException ee) {
+                    if (failure == null) {
+                        failure = ee.getCause();
+                    }
+                    else {
+                        LOG.warn(ee.getCause(), "Forked service failed");
+                    }
+                }
+            }
+            if (failure != null) {
+                throw Throwables.propagate(failure);
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(ie);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds one of the constants in {@link LifecycleStage} by its name.
+     */
+    static LifecycleStage findStage(final String name)
+    {
+        for (final Field field : LifecycleStage.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == LifecycleStage.class) {
+                try {
+                    final LifecycleStage stage = LifecycleStage.class.cast(field.get(null));
+                    if (stage != null && name.equals(stage.getName())) {
+                        return stage;
+                    }
+                }
+                catch (IllegalAccessException iae) {
+                    throw Throwables.propagate(iae);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unknown lifecycle stage '" + name + "'!");
+    }
+
+    static Map<String, String> getConfigValues(final Properties spec)
+    {
+        final Map<String, String> values = Maps.newHashMap();
+        for (final String key : spec.stringPropertyNames()) {
+            if (key.startsWith(CONFIG_PREFIX)) {
+                values.put(key.substring(CONFIG_PREFIX.length()), spec.getProperty(key));
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.apache.commons.configuration.MapConfiguration;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Stage;
+
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.logging.Log;
+import com.nesscomputing.testing.lessio.AllowAll;
+import com.nesscomputing.testing.tweaked.ExecutorTracker;
+import com.nesscomputing.testing.tweaked.InMemoryServiceRegistry;
+import com.nesscomputing.testing.tweaked.PlatformMBeanServers;
+import com.nesscomputing.testing.tweaked.TraceCollector;
+import com.nesscomputing.testing.tweaked.TweakedModule;
+import com.nesscomputing.testing.tweaked.TweakedModuleSpecs;
+import com.nesscomputing.testing.tweaked.VirtualClock;
+
+/**
+ * Runs a single service in a forked JVM. This is started and controlled by {@link ForkedService}, it should never be run directly.
+ */
+@AllowAll
+public final class ForkedServiceMain
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final PrintStream PROTOCOL = System.out;
+
+    private ForkedServiceMain()
+    {
+    }
+
+    public static void main(final String [] args) throws IOException
+    {
+        final BufferedReader commands = new BufferedReader(new InputStreamReader(System.in, Charsets.UTF_8));
+
+        final Properties spec = readSpec(commands);
+        final String serviceName = spec.getProperty(ForkedService.SERVICE_NAME);
+
+        Lifecycle lifecycle = null;
+        final URI serviceUri;
+        final InFlightRequestFilter requests = new InFlightRequestFilter();
+
+        try {
+            final Config serviceConfig = Config.getOverriddenConfig(Config.getEmptyConfig(), new MapConfiguration(ForkedService.getConfigValues(spec)));
+
+            final List<TweakedModule> tweakedModules = Lists.newArrayList();
+            for (final String key : new TreeSet<String>(spec.stringPropertyNames())) {
+                if (key.startsWith(ForkedService.MODULE_PREFIX)) {
+                    tweakedModules.add(TweakedModuleSpecs.fromSpec(spec.getProperty(key)));
+                }
+            }
+            final TweakedModule serviceTweakedModule = TweakedModuleSpecs.fromSpec(spec.getProperty(ForkedService.SERVICE_MODULE));
+
+            // The registry of the test environment lives in the parent JVM, a forked service only gets an empty one.
+            final Injector injector = Guice.createInjector(Stage.PRODUCTION,
+                                                           new GuiceDisableModule(),
+                                                           new AbstractModule() {
+                                                               @Override
+                                                               protected void configure() {
+                                                                   bind(InMemoryServiceRegistry.class).toInstance(new InMemoryServiceRegistry());
+                                                                   // Spans of a forked service stay in its own JVM.
+                                                                   bind(TraceCollector.class).toInstance(new TraceCollector());
+                                                                   // The test can not advance the clock of a forked service.
+                                                                   bind(VirtualClock.class).toInstance(new VirtualClock());
+                                                                   bind(ExecutorTracker.class).toInstance(new ExecutorTracker());
+                                                                   bind(PlatformMBeanServers.class).toInstance(new PlatformMBeanServers());
+                                                               }
+                                                           },
+                                                           requests.getModule(),
+                                                           IntegrationTestRuleBuilder.getServiceModule(serviceName, serviceConfig, tweakedModules, serviceTweakedModule));
+
+            final Binding<Lifecycle> lifecycleBinding = injector.getExistingBinding(Key.get(Lifecycle.class));
+            if (lifecycleBinding != null) {
+                lifecycle = injector.getInstance(Lifecycle.class);
+                lifecycle.executeTo(ForkedService.findStage(spec.getProperty(ForkedService.START_STAGE)));
+            }
+
+            serviceUri = NessHttpserverHelper.findServiceUri(injector);
+        }
+        catch (Throwable t) {
+            LOG.error(t, "Could not start forked service '%s'", serviceName);
+            respond(ForkedService.STARTUP_ID, ForkedService.FAILED + " " + String.valueOf(t).replace('\n', ' '));
+            System.exit(1);
+            return;
+        }
+
+        respond(ForkedService.STARTUP_ID, ForkedService.READY + " " + (serviceUri == null ? ForkedService.NO_URI : serviceUri.toString()));
+
+        // Every command is "<request id> <command>", the answer repeats the request id.
+        String stopId = ForkedService.ANY_ID;
+        String line;
+        while ((line = commands.readLine()) != null) {
+            final int separator = line.indexOf(' ');
+            final String requestId = separator < 0 ? ForkedService.ANY_ID : line.substring(0, separator);
+            final String command = separator < 0 ? line : line.substring(separator + 1);
+
+            if (ForkedService.STATS.equals(command)) {
+                respond(requestId, ForkedService.STATS + " " + ForkedJvmStatistics.forCurrentJvm().format());
+            }
+            else if (ForkedService.STOP.equals(command)) {
+                stopId = requestId;
+                break;
+            }
+            else {
+                respond(requestId, ForkedService.FAILED + " unknown command " + command);
+            }
+        }
+
+        // Either asked to stop or the parent went away. The parent removed the service from its registry before, so no new requests arrive.
+        if (!requests.awaitDrained(InFlightRequestFilter.DRAIN_TIMEOUT_MILLIS)) {
+            LOG.warn("'%s' still handles %d requests after %d ms, stopping it anyway.", serviceName, requests.getInFlight(), InFlightRequestFilter.DRAIN_TIMEOUT_MILLIS);
+        }
+        if (lifecycle != null) {
+            lifecycle.execute(ForkedService.findStage(spec.getProperty(ForkedService.STOP_STAGE)));
+        }
+        respond(stopId, ForkedService.STOPPED);
+        System.exit(0);
+    }
+
+    private static Properties readSpec(final BufferedReader commands) throws IOException
+    {
+        final StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = commands.readLine()) != null && !ForkedService.SPEC_END.equals(line)) {
+            sb.append(line).append('\n');
+        }
+
+        final Properties spec = new Properties();
+        spec.load(new StringReader(sb.toString()));
+        return spec;
+    }
+
+    private static void respond(final String requestId, final String response)
+    {
+        synchronized (PROTOCOL) {
+            PROTOCOL.println(ForkedService.PROTOCOL_PREFIX + requestId + " " + response);
+            PROTOCOL.flush();
+        }
+    }
+}
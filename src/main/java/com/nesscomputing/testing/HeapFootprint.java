@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Key;
+
+/**
+ * The heap retained by a service after it reached its start stage.
+ *
+ * @see IntegrationTestRuleBuilder#setHeapFootprint(boolean)
+ */
+public final class HeapFootprint
+{
+    private final String serviceName;
+    private final long retainedBytes;
+    private final long objectCount;
+    private final long heapDeltaBytes;
+    private final Map<Key<?>, Long> bindingBytes;
+
+    HeapFootprint(final String serviceName, final long retainedBytes, final long objectCount, final long heapDeltaBytes, final Map<Key<?>, Long> bindingBytes)
+    {
+        this.serviceName = serviceName;
+        this.retainedBytes = retainedBytes;
+        this.objectCount = objectCount;
+        this.heapDeltaBytes = heapDeltaBytes;
+        this.bindingBytes = ImmutableMap.copyOf(bindingBytes);
+    }
+
+    public String getServiceName()
+    {
+        return serviceName;
+    }
+
+    /**
+     * Estimated size of all objects reachable from the singletons of the service injector. Objects shared with the rule or
+     * other services are not counted.
+     */
+    public long getRetainedBytes()
+    {
+        return retainedBytes;
+    }
+
+    /**
+     * Number of objects reachable from the singletons of the service injector.
+     */
+    public long getObjectCount()
+    {
+        return objectCount;
+    }
+
+    /**
+     * Growth of the used heap, after garbage collection, while the injector of the service was created. Less precise than
+     * {@link #getRetainedBytes()} but includes objects that are not reachable from singletons, e.g. static caches.
+     */
+    public long getHeapDeltaBytes()
+    {
+        return heapDeltaBytes;
+    }
+
+    /**
+     * Estimated size of the objects that are reachable from each singleton binding. An object reachable from several bindings
+     * is counted for the first of them only, so the values add up to {@link #getRetainedBytes()}.
+     */
+    public Map<Key<?>, Long> getBindingBytes()
+    {
+        return bindingBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %d kB retained in %d objects, heap delta %d kB", serviceName, retainedBytes / 1024, objectCount, heapDeltaBytes / 1024);
+    }
+}
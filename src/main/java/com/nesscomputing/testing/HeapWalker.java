@@ -0,0 +1,278 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Binding;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Scopes;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Estimates the retained heap of service injectors by walking the object graph from their singletons. Object sizes are
+ * estimated from the field layout, assuming a 64 bit JVM with compressed references for heaps below 32 GB.
+ */
+final class HeapWalker
+{
+    private static final Log LOG = Log.findLog();
+
+    /** Stop walking after this many objects per injector. */
+    private static final int MAX_OBJECTS = 5000000;
+
+    private static final boolean COMPRESSED_REFERENCES = Runtime.getRuntime().maxMemory() < 32L * 1024 * 1024 * 1024;
+    private static final int REFERENCE_SIZE = COMPRESSED_REFERENCES ? 4 : 8;
+    private static final int OBJECT_HEADER_SIZE = COMPRESSED_REFERENCES ? 12 : 16;
+    private static final int ARRAY_HEADER_SIZE = OBJECT_HEADER_SIZE + 4;
+
+    // Per walker, a static cache would keep the classes of isolated services and their class loaders alive.
+    private final Map<Class<?>, ClassLayout> layouts = Maps.newHashMap();
+
+    private final Set<Object> visited = Sets.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    /**
+     * @param shared objects that belong to the rule or the test environment and are not counted for any service.
+     */
+    HeapWalker(final Collection<?> shared)
+    {
+        for (final Object object : shared) {
+            if (object != null) {
+                visited.add(object);
+            }
+        }
+    }
+
+    /**
+     * Used heap after garbage collection.
+     */
+    static long getUsedHeap()
+    {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Walks all singletons of an injector. Objects that were counted for an earlier injector are not counted again.
+     */
+    HeapFootprint measure(final String serviceName, final Injector injector, final long heapDeltaBytes)
+    {
+        final Map<Key<?>, Long> bindingBytes = Maps.newLinkedHashMap();
+        long retainedBytes = 0;
+        long objectCount = 0;
+
+        for (final Map.Entry<Key<?>, Binding<?>> entry : injector.getAllBindings().entrySet()) {
+            if (!Scopes.isSingleton(entry.getValue()) || Injector.class.equals(entry.getKey().getTypeLiteral().getRawType())) {
+                continue;
+            }
+
+            final Object instance;
+            try {
+                instance = entry.getValue().getProvider().get();
+            }
+            catch (RuntimeException re) {
+                LOG.trace("Could not get %s: %s", entry.getKey(), re);
+                continue;
+            }
+
+            final long [] counts = walk(instance, MAX_OBJECTS - objectCount);
+            if (counts[0] > 0) {
+                bindingBytes.put(entry.getKey(), counts[0]);
+                retainedBytes += counts[0];
+                objectCount += counts[1];
+            }
+            if (objectCount >= MAX_OBJECTS) {
+                LOG.warn("Service '%s' has more than %d objects, footprint is incomplete!", serviceName, MAX_OBJECTS);
+                break;
+            }
+        }
+
+        return new HeapFootprint(serviceName, retainedBytes, objectCount, heapDeltaBytes, bindingBytes);
+    }
+
+    /**
+     * Returns size and number of the objects that are reachable from the root and were not visited before.
+     */
+    private long [] walk(final Object root, final long maxObjects)
+    {
+        long bytes = 0;
+        long objects = 0;
+
+        final Deque<Object> stack = new ArrayDeque<Object>();
+        push(stack, root);
+
+        while (!stack.isEmpty() && objects < maxObjects) {
+            final Object object = stack.pop();
+            final Class<?> clazz = object.getClass();
+            objects++;
+
+            if (clazz.isArray()) {
+                final int length = Array.getLength(object);
+                final Class<?> componentType = clazz.getComponentType();
+                bytes += align(ARRAY_HEADER_SIZE + (long) length * sizeOf(componentType));
+                if (!componentType.isPrimitive()) {
+                    for (final Object element : (Object []) object) {
+                        push(stack, element);
+                    }
+                }
+                continue;
+            }
+
+            final ClassLayout layout = getLayout(clazz);
+            bytes += layout.size;
+            for (final Field field : layout.referenceFields) {
+                try {
+                    push(stack, field.get(object));
+                }
+                catch (IllegalAccessException iae) {
+                    // Counted as a leaf.
+                }
+            }
+            if (layout.opaque) {
+                pushContents(stack, object);
+            }
+        }
+        return new long [] { bytes, objects };
+    }
+
+    /**
+     * The fields of JDK collections are not accessible on newer JVMs, use their public interface instead. The internal
+     * arrays and entries are not counted in this case.
+     */
+    private void pushContents(final Deque<Object> stack, final Object object)
+    {
+        try {
+            if (object instanceof Collection) {
+                for (final Object element : (Collection<?>) object) {
+                    push(stack, element);
+                }
+            }
+            else if (object instanceof Map) {
+                for (final Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+                    push(stack, entry.getKey());
+                    push(stack, entry.getValue());
+                }
+            }
+        }
+        catch (RuntimeException re) {
+            // Concurrently modified, counted as far as it got.
+        }
+    }
+
+    private void push(final Deque<Object> stack, final Object object)
+    {
+        if (object != null && !isLeaf(object) && visited.add(object)) {
+            stack.push(object);
+        }
+    }
+
+    /**
+     * Objects that belong to the JVM or the framework rather than to a service.
+     */
+    private static boolean isLeaf(final Object object)
+    {
+        return object instanceof Class
+            || object instanceof ClassLoader
+            || object instanceof Thread
+            || object instanceof ThreadGroup
+            || object instanceof Reference
+            || object instanceof Enum
+            || object instanceof Injector;
+    }
+
+    private ClassLayout getLayout(final Class<?> clazz)
+    {
+        ClassLayout layout = layouts.get(clazz);
+        if (layout == null) {
+            layout = new ClassLayout(clazz);
+            layouts.put(clazz, layout);
+        }
+        return layout;
+    }
+
+    private static int sizeOf(final Class<?> type)
+    {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        else if (type == int.class || type == float.class) {
+            return 4;
+        }
+        else if (type == short.class || type == char.class) {
+            return 2;
+        }
+        else if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return REFERENCE_SIZE;
+    }
+
+    private static long align(final long size)
+    {
+        return (size + 7) & ~7L;
+    }
+
+    private static final class ClassLayout
+    {
+        private final long size;
+        private final List<Field> referenceFields;
+        private final boolean opaque;
+
+        private ClassLayout(final Class<?> clazz)
+        {
+            boolean inaccessible = false;
+            long fieldSize = 0;
+            final List<Field> fields = Lists.newArrayList();
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                for (final Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    fieldSize += sizeOf(field.getType());
+                    if (!field.getType().isPrimitive()) {
+                        try {
+                            field.setAccessible(true);
+                            fields.add(field);
+                        }
+                        catch (RuntimeException re) {
+                            // Not accessible on newer JVMs, counted as a leaf.
+                            inaccessible = true;
+                        }
+                    }
+                }
+            }
+            this.size = align(OBJECT_HEADER_SIZE + fieldSize);
+            this.referenceFields = ImmutableList.copyOf(fields);
+            this.opaque = inaccessible;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Connection pool settings for the http client of the test case, set with {@link IntegrationTestRuleBuilder#setTestClientPool(HttpClientPoolOptions)}.
+ * Settings that are not set keep the defaults of the http client.
+ */
+public final class HttpClientPoolOptions
+{
+    /** Name of the http client that is installed for the test case. */
+    public static final String TEST_CLIENT_NAME = "__test";
+
+    /** Configuration key for the maximum number of connections per route of the test case client. */
+    public static final String MAX_PER_ROUTE_KEY = "ness.httpclient." + TEST_CLIENT_NAME + ".max-per-route-connections";
+
+    private final Map<String, String> configTweaks;
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    private HttpClientPoolOptions(final Builder builder)
+    {
+        this.configTweaks = builder.configTweaks.build();
+    }
+
+    /**
+     * The http client configuration keys for the test case client.
+     */
+    public Map<String, String> getConfigTweaks()
+    {
+        return configTweaks;
+    }
+
+    public static final class Builder
+    {
+        private final ImmutableMap.Builder<String, String> configTweaks = ImmutableMap.builder();
+
+        private Builder()
+        {
+        }
+
+        /**
+         * Set the maximum number of pooled connections over all routes.
+         */
+        public Builder setMaxTotalConnections(final int maxTotalConnections)
+        {
+            Preconditions.checkArgument(maxTotalConnections > 0, "The maximum number of connections must be positive!");
+            return set("max-total-connections", Integer.toString(maxTotalConnections));
+        }
+
+        /**
+         * Set the maximum number of pooled connections to a single host.
+         */
+        public Builder setMaxConnectionsPerRoute(final int maxConnectionsPerRoute)
+        {
+            Preconditions.checkArgument(maxConnectionsPerRoute > 0, "The maximum number of connections per route must be positive!");
+            configTweaks.put(MAX_PER_ROUTE_KEY, Integer.toString(maxConnectionsPerRoute));
+            return this;
+        }
+
+        /**
+         * Set how long an idle connection is kept open for reuse.
+         */
+        public Builder setKeepAlive(final long keepAlive, @Nonnull final TimeUnit unit)
+        {
+            Preconditions.checkArgument(keepAlive >= 0, "The keep alive time must not be negative!");
+            return set("idle-timeout", unit.toMillis(keepAlive) + "ms");
+        }
+
+        /**
+         * Set the time to wait for a connection to be established.
+         */
+        public Builder setConnectTimeout(final long connectTimeout, @Nonnull final TimeUnit unit)
+        {
+            Preconditions.checkArgument(connectTimeout > 0, "The connect timeout must be positive!");
+            return set("connect-timeout", unit.toMillis(connectTimeout) + "ms");
+        }
+
+        private Builder set(final String key, final String value)
+        {
+            configTweaks.put("ness.httpclient." + TEST_CLIENT_NAME + "." + key, value);
+            return this;
+        }
+
+        public HttpClientPoolOptions build()
+        {
+            return new HttpClientPoolOptions(this);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import com.google.inject.Module;
+import com.google.inject.servlet.ServletModule;
+
+/**
+ * Counts the requests that a service instance is handling, so that the instance can be drained before it is stopped.
+ */
+final class InFlightRequestFilter implements Filter
+{
+    /** Maximum time to wait for the requests of an instance to finish before it is stopped anyway. */
+    static final long DRAIN_TIMEOUT_MILLIS = 10000;
+
+    private static final long DRAIN_POLL_MILLIS = 10;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Returns a module that installs the filter in front of all resources of the service.
+     */
+    Module getModule()
+    {
+        return new ServletModule() {
+            @Override
+            protected void configureServlets() {
+                filter("/*").through(InFlightRequestFilter.this);
+            }
+        };
+    }
+
+    int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    /**
+     * Wait until no request is in flight anymore.
+     * @return false if requests were still in flight when the timeout expired
+     */
+    boolean awaitDrained(final long timeoutMillis)
+    {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (inFlight.get() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void init(final FilterConfig filterConfig)
+    {
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException, ServletException
+    {
+        inFlight.incrementAndGet();
+        try {
+            chain.doFilter(request, response);
+        }
+        finally {
+            inFlight.decrementAndGet();
+        }
+    }
+}
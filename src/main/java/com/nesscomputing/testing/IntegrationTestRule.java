@@ -15,17 +15,47 @@
  */
 package com.nesscomputing.testing;
 
+import java.io.IOException;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import javax.annotation.Nonnull;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.commons.configuration.MapConfiguration;
 import org.junit.Rule;
 import org.junit.rules.ExternalResource;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
 
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Binding;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
@@ -34,9 +64,21 @@ import com.google.inject.Module;
 import com.google.inject.ProvisionException;
 import com.google.inject.Stage;
 
+import com.nesscomputing.config.Config;
 import com.nesscomputing.lifecycle.Lifecycle;
 import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.logging.Log;
 import com.nesscomputing.testing.lessio.AllowAll;
+import com.nesscomputing.testing.tweaked.ExecutorTracker;
+import com.nesscomputing.testing.tweaked.HttpClientStats;
+import com.nesscomputing.testing.tweaked.InMemoryServiceRegistry;
+import com.nesscomputing.testing.tweaked.PlatformMBeanServers;
+import com.nesscomputing.testing.tweaked.TemplateDatabase;
+import com.nesscomputing.testing.tweaked.ProvisionProfiler;
+import com.nesscomputing.testing.tweaked.TraceCollector;
+import com.nesscomputing.testing.tweaked.TweakedModule;
+import com.nesscomputing.testing.tweaked.TweakedModules.TweakEnabler;
+import com.nesscomputing.testing.tweaked.VirtualClock;
 
 
 /**
@@ -47,78 +89,598 @@ import com.nesscomputing.testing.lessio.AllowAll;
 @AllowAll
 public class IntegrationTestRule extends ExternalResource
 {
+    private static final Log LOG = Log.findLog();
+
+    /** Separates the service name from the replica number in the keys of the service injectors. */
+    static final char REPLICA_SEPARATOR = '#';
+
+    /** Orders the keys of the replicas of a service by replica number. */
+    private static final Comparator<String> REPLICA_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(final String key1, final String key2) {
+            return Integer.valueOf(getReplica(key1)).compareTo(getReplica(key2));
+        }
+    };
+
+    /**
+     * Rules whose services were started by {@link #startAsync()} and which were not applied yet. JUnit never applies a rule if an outer rule
+     * or the test class initialization fails, or if the test is skipped, so these are stopped by the next asynchronous start on the same
+     * thread or at the latest when the JVM exits.
+     */
+    private static final Set<IntegrationTestRule> PENDING_STARTS = Collections.synchronizedSet(Sets.<IntegrationTestRule>newIdentityHashSet());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("integration-test-abandoned-start-cleanup") {
+            @Override
+            public void run() {
+                final List<IntegrationTestRule> abandoned;
+                synchronized (PENDING_STARTS) {
+                    abandoned = ImmutableList.copyOf(PENDING_STARTS);
+                    PENDING_STARTS.clear();
+                }
+                for (final IntegrationTestRule rule : abandoned) {
+                    rule.abandonStart();
+                }
+            }
+        });
+    }
+
     private final Map<String, Module> services;
+    private final Map<String, ForkedService> forkedServices;
     private final Module testCaseModule;
     private final Object testCaseItself;
 
-    private final Map<String, Injector> serviceInjectors = Maps.newHashMap();
+    private final Map<String, Injector> serviceInjectors = Maps.newConcurrentMap();
+    private final Map<String, Lifecycle> serviceLifecycles = Maps.newConcurrentMap();
+    private final Map<String, InFlightRequestFilter> inFlightRequests = Maps.newConcurrentMap();
 
-    private final List<Lifecycle> lifecycles = Lists.newArrayList();
+    private final List<Lifecycle> lifecycles = new CopyOnWriteArrayList<Lifecycle>();
 
     private final LifecycleStage startStage;
     private final LifecycleStage stopStage;
 
+    private final boolean classPreloading;
+    private final long startupTimeoutMillis;
+
+    private final Multimap<String, ReadinessProbe> readinessProbes;
+    private final long readinessTimeoutMillis;
+
+    private final Map<String, ThrottleStats> throttleStats;
+
+    private final boolean heapFootprint;
+    private final Map<String, HeapFootprint> heapFootprints = Maps.newConcurrentMap();
+
+    private final ConfigAccessProfiler configProfiler;
+
+    private final ServiceThreadGroups serviceThreadGroups;
+    private final ContentionMonitor contentionMonitor;
+    private final CpuProfiler cpuProfiler;
+
+    private volatile String testName = null;
+
+    private volatile Future<Void> servicesStarted = null;
+    private volatile Thread startingThread = null;
+    private final CountDownLatch startFinished = new CountDownLatch(1);
+    private final Object startLock = new Object();
+    private boolean startCancelled = false;
+    private boolean startCompleted = false;
+
+    private final InMemoryServiceRegistry serviceRegistry = new InMemoryServiceRegistry();
+
+    private final TraceCollector traceCollector = new TraceCollector();
+
+    private final HttpClientStats testClientStats = new HttpClientStats();
+
+    private final VirtualClock virtualClock = new VirtualClock();
+
+    private final ExecutorTracker executorTracker = new ExecutorTracker();
+
+    private final PlatformMBeanServers platformMBeanServers = new PlatformMBeanServers();
+
+    private final Map<String, Long> startupNanos = Maps.newConcurrentMap();
+    private volatile long startedNanos = 0;
+
+    private final List<TweakedModule> tweakedModules;
+    private final Map<String, String> serviceConfigTweaks;
+
+    private final Map<String, ServiceClassLoader> serviceClassLoaders;
+    private final Map<String, ServiceOptions> serviceOptions;
+
+    private final String fingerprint;
+    private volatile String testClassName = null;
+    private volatile long environmentStartupNanos = 0;
+
     IntegrationTestRule(final Map<String, Module> services,
+                        final Map<String, ForkedService> forkedServices,
                         final LifecycleStage startStage,
                         final LifecycleStage stopStage,
                         final Module testCaseModule,
-                        final Object testCaseItself)
+                        final Object testCaseItself,
+                        final boolean classPreloading,
+                        final long startupTimeoutMillis,
+                        final Multimap<String, ReadinessProbe> readinessProbes,
+                        final long readinessTimeoutMillis,
+                        final Map<String, ThrottleStats> throttleStats,
+                        final boolean heapFootprint,
+                        final ConfigAccessProfiler configProfiler,
+                        final boolean contentionMonitoring,
+                        final boolean cpuProfiling,
+                        final List<TweakedModule> tweakedModules,
+                        final Map<String, String> serviceConfigTweaks,
+                        final Map<String, ServiceClassLoader> serviceClassLoaders,
+                        final Map<String, ServiceOptions> serviceOptions,
+                        final String fingerprint)
     {
-        this.services = services;
+        this.services = Maps.newConcurrentMap();
+        this.services.putAll(services);
+        this.forkedServices = forkedServices;
         this.startStage = startStage;
         this.stopStage = stopStage;
         this.testCaseModule = testCaseModule;
         this.testCaseItself = testCaseItself;
+        this.classPreloading = classPreloading;
+        this.startupTimeoutMillis = startupTimeoutMillis;
+        this.readinessProbes = readinessProbes;
+        this.readinessTimeoutMillis = readinessTimeoutMillis;
+        this.throttleStats = ImmutableMap.copyOf(throttleStats);
+        this.heapFootprint = heapFootprint;
+        this.configProfiler = configProfiler;
+        this.serviceThreadGroups = (contentionMonitoring || cpuProfiling) ? new ServiceThreadGroups() : null;
+        this.contentionMonitor = contentionMonitoring ? new ContentionMonitor(serviceThreadGroups) : null;
+        this.cpuProfiler = cpuProfiling ? new CpuProfiler(serviceThreadGroups) : null;
+        this.tweakedModules = ImmutableList.copyOf(tweakedModules);
+        this.serviceConfigTweaks = ImmutableMap.copyOf(serviceConfigTweaks);
+        this.serviceClassLoaders = Maps.newConcurrentMap();
+        this.serviceClassLoaders.putAll(serviceClassLoaders);
+        this.serviceOptions = Maps.newConcurrentMap();
+        this.serviceOptions.putAll(serviceOptions);
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Start creating the service injectors and lifecycles on a background thread. {@link #before()} waits for this to complete,
+     * so that other rules and the test class initialization can run in the meantime.
+     */
+    void startAsync()
+    {
+        stopAbandonedStarts();
+        startingThread = Thread.currentThread();
+        PENDING_STARTS.add(this);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("integration-test-start-%d").setDaemon(true).build());
+        servicesStarted = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    startServices();
+
+                    // If before() gave up waiting, nobody else stops the services.
+                    synchronized (startLock) {
+                        if (startCancelled) {
+                            stopServices();
+                        }
+                        else {
+                            startCompleted = true;
+                        }
+                    }
+                    return null;
+                }
+                finally {
+                    startFinished.countDown();
+                }
+            }
+        });
+        executor.shutdown();
+    }
+
+    /**
+     * Stop the services of rules that were started asynchronously on this thread for another test case and were never applied. JUnit builds
+     * the rules of a test case and applies them on the same thread before it builds the next test case, so such a rule has been skipped. Rules
+     * of the same test case are left alone, they may still be waiting for their turn in a rule chain.
+     */
+    private void stopAbandonedStarts()
+    {
+        final List<IntegrationTestRule> abandoned = Lists.newArrayList();
+        synchronized (PENDING_STARTS) {
+            for (final IntegrationTestRule rule : PENDING_STARTS) {
+                if (rule.startingThread == Thread.currentThread() && rule.testCaseItself != testCaseItself) {
+                    abandoned.add(rule);
+                }
+            }
+            PENDING_STARTS.removeAll(abandoned);
+        }
+
+        for (final IntegrationTestRule rule : abandoned) {
+            LOG.warn("Rule for %s was started but never applied, stopping its services.", rule.testCaseItself.getClass().getName());
+            rule.abandonStart();
+        }
+    }
+
+    /**
+     * Stop the services of a rule that will never be applied. If the background start is still running, it stops the services itself when it is done.
+     */
+    private void abandonStart()
+    {
+        final boolean completed;
+        synchronized (startLock) {
+            startCancelled = true;
+            completed = startCompleted;
+        }
+
+        if (completed) {
+            stopServices();
+        }
+    }
+
+    /**
+     * Setup the service injectors and start their lifecycles. This is run when the rule triggers so that other rules (such as database or lifecycle) can
+     * be ready by the time the injectors are created, or in the background if the rule was started asynchronously.
+     */
+    private void startServices()
+    {
+        final long startNanos = System.nanoTime();
+
+        // Class loaders of isolated services from earlier tests should be gone by now.
+        ServiceClassLoader.checkReleased();
+
+        if (contentionMonitor != null) {
+            contentionMonitor.start();
+        }
+        if (cpuProfiler != null) {
+            cpuProfiler.start();
+        }
+
+        final List<Lifecycle> startedLifecycles = Lists.newArrayList();
+        try {
+            // Databases are created when the test starts, not when the rule is built.
+            for (final TweakedModule tweakedModule : tweakedModules) {
+                if (tweakedModule instanceof TemplateDatabase) {
+                    TemplateDatabase.class.cast(tweakedModule).create();
+                }
+            }
+
+            // Forked services run in their own JVMs, start them first so that they are ready by the time they are used.
+            ForkedService.startAll(forkedServices.values());
+            for (final ForkedService forkedService : forkedServices.values()) {
+                announceForkedService(forkedService);
+            }
+
+            // For each registered service, set up an environment.
+            final Map<String, Long> heapDeltas = Maps.newHashMap();
+            for (final Entry<String, Module> service : services.entrySet()) {
+                final long usedHeap = heapFootprint ? HeapWalker.getUsedHeap() : 0;
+
+                createServiceInjector(service.getKey(), service.getValue());
+
+                if (heapFootprint) {
+                    heapDeltas.put(service.getKey(), HeapWalker.getUsedHeap() - usedHeap);
+                }
+            }
+
+            // Start up all the lifecycles. Every instance is announced as soon as it is up, so that services that start later can find it.
+            for (final Entry<String, Lifecycle> entry : serviceLifecycles.entrySet()) {
+                startedLifecycles.add(entry.getValue());
+                startLifecycle(entry.getKey(), entry.getValue());
+                announceService(entry.getKey());
+            }
+            for (final String key : serviceInjectors.keySet()) {
+                if (!serviceLifecycles.containsKey(key)) {
+                    announceService(key);
+                }
+            }
+
+            startedNanos = System.nanoTime();
+            environmentStartupNanos = startedNanos - startNanos;
+
+            if (heapFootprint) {
+                measureHeapFootprints(heapDeltas);
+            }
+
+            if (tweakedModules.contains(TweakEnabler.platformJmxEnabled.get())) {
+                exportEnvironment();
+            }
+        }
+        catch (RuntimeException re) {
+            // after() is not called if before() fails, so do not leave started services or child JVMs behind.
+            for (final Lifecycle lifecycle : startedLifecycles) {
+                try {
+                    lifecycle.execute(stopStage);
+                }
+                catch (RuntimeException stopException) {
+                    LOG.warn(stopException, "Could not stop lifecycle after failed start");
+                }
+            }
+            ForkedService.stopAll(forkedServices.values());
+            if (contentionMonitor != null) {
+                contentionMonitor.stop();
+            }
+            if (cpuProfiler != null) {
+                cpuProfiler.stop();
+            }
+            executorTracker.shutdown();
+            platformMBeanServers.unregisterAll();
+            releaseClassLoaders();
+            dropDatabases();
+            throw re;
+        }
+
+        // Reaching the start stage does not mean that the services actually respond. Wait until all probes pass.
+        try {
+            ReadinessProbes.awaitAll(this, getInstanceProbes(), readinessTimeoutMillis);
+        }
+        catch (RuntimeException re) {
+            stopServices();
+            throw re;
+        }
+    }
+
+    /**
+     * Creates the injector of a service and registers its lifecycle.
+     */
+    private Injector createServiceInjector(final String key, final Module module)
+    {
+        final long start = System.nanoTime();
+        final InFlightRequestFilter requests = new InFlightRequestFilter();
+        final Injector injector = runInService(key, new Callable<Injector>() {
+            @Override
+            public Injector call() {
+                return Guice.createInjector(Stage.PRODUCTION,
+                                            new GuiceDisableModule(),
+                                            new EnvironmentModule(IntegrationTestRule.this, key),
+                                            requests.getModule(),
+                                            module);
+            }
+        });
+
+        serviceInjectors.put(key, injector);
+        inFlightRequests.put(key, requests);
+        startupNanos.put(key, System.nanoTime() - start);
+
+        final Binding<Lifecycle> lifecycleBinding = injector.getExistingBinding(Key.get(Lifecycle.class));
+        if (lifecycleBinding != null) {
+            final Lifecycle lifecycle = injector.getInstance(Lifecycle.class);
+            lifecycles.add(lifecycle);
+            serviceLifecycles.put(key, lifecycle);
+        }
+        return injector;
+    }
+
+    private void startLifecycle(final String key, final Lifecycle lifecycle)
+    {
+        final long start = System.nanoTime();
+        runInService(key, new Callable<Void>() {
+            @Override
+            public Void call() {
+                lifecycle.executeTo(startStage);
+                return null;
+            }
+        });
+
+        final Long injectorNanos = startupNanos.get(key);
+        startupNanos.put(key, (injectorNanos == null ? 0 : injectorNanos) + System.nanoTime() - start);
+    }
+
+    /**
+     * Runs a part of the service startup. With the contention monitor or the CPU profiler, this happens on a thread in the thread group of the service,
+     * so that all threads started by the service can be attributed to it.
+     */
+    private <T> T runInService(final String serviceName, final Callable<T> callable)
+    {
+        // An isolated service loads its classes through the context class loader, and all threads it starts inherit it.
+        final ServiceClassLoader classLoader = serviceClassLoaders.get(serviceName);
+        final Callable<T> task = classLoader == null ? callable : classLoader.withContextClassLoader(callable);
+
+        if (serviceThreadGroups != null) {
+            return serviceThreadGroups.runInService(serviceName, task);
+        }
+
+        try {
+            return task.call();
+        }
+        catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Estimate the heap retained by every service injector. Objects shared through the rule are not counted for any service.
+     */
+    private void measureHeapFootprints(final Map<String, Long> heapDeltas)
+    {
+        final HeapWalker heapWalker = new HeapWalker(Arrays.asList(this, testCaseItself, serviceRegistry, traceCollector, testClientStats));
+        for (final Entry<String, Injector> entry : serviceInjectors.entrySet()) {
+            final Long heapDelta = heapDeltas.get(entry.getKey());
+            final HeapFootprint footprint = heapWalker.measure(entry.getKey(), entry.getValue(), heapDelta == null ? 0 : heapDelta);
+            heapFootprints.put(entry.getKey(), footprint);
+            LOG.info("Heap footprint of %s", footprint);
+        }
     }
 
     /**
-     * Setup the various injectors. This is run when the rule triggers so that other rules (such as database or lifecycle) can
-     * be ready by the time the injectors are created.
+     * Wait for the services started by {@link #startAsync()}.
      */
-    private void setup()
+    private void awaitServices()
     {
-        // For each registered service, set up an environment.
-        for (final Entry<String, Module> service : services.entrySet()) {
-            final Injector injector = Guice.createInjector(Stage.PRODUCTION,
-                                                           new GuiceDisableModule(),
-                                                           service.getValue());
+        try {
+            servicesStarted.get(startupTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException ee) {
+            throw Throwables.propagate(ee.getCause());
+        }
+        catch (TimeoutException te) {
+            final boolean completed;
+            synchronized (startLock) {
+                startCancelled = true;
+                completed = startCompleted;
+            }
 
-            serviceInjectors.put(service.getKey(), injector);
+            servicesStarted.cancel(true);
+            if (completed) {
+                // The services came up right after the timeout, the start thread is done with them.
+                stopServices();
+            }
+            else {
+                // The start thread cleans up by itself, either because the start fails or because it sees the cancellation.
+                awaitStartThread();
+            }
+            throw new IllegalStateException(String.format("Services did not start within %d ms!", startupTimeoutMillis), te);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(ie);
+        }
+    }
 
-            final Binding<Lifecycle> lifecycleBinding = injector.getExistingBinding(Key.get(Lifecycle.class));
-            if (lifecycleBinding != null) {
-                lifecycles.add(injector.getInstance(Lifecycle.class));
+    private void awaitStartThread()
+    {
+        try {
+            if (!startFinished.await(startupTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Start thread did not finish %d ms after it was cancelled, services may be left running!", startupTimeoutMillis);
             }
         }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
+    /**
+     * Create the injector for the test case and inject the test case.
+     */
+    private void setupTestCase()
+    {
         // Now create a lifecycle for the test case, so that it may get a HttpClient that can
         // interact via srvc:// URIs
         final Injector testInjector = Guice.createInjector(Stage.PRODUCTION,
                                                        new GuiceDisableModule(),
+                                                       new EnvironmentModule(this, TweakedModule.TEST_CASE_NAME),
                                                        testCaseModule);
 
         testInjector.injectMembers(this);
         testInjector.injectMembers(testCaseItself);
+
+        if (classPreloading) {
+            ClassPreloader.record(Lists.newArrayList(Iterables.concat(serviceInjectors.values(), Collections.singleton(testInjector))));
+        }
     }
 
-    @Override
-    protected void before()
+    /**
+     * Register a service instance in the service registry if it has an http server.
+     */
+    private void announceService(final String key)
     {
-        setup();
+        final URI serviceUri = NessHttpserverHelper.findServiceUri(serviceInjectors.get(key));
+        if (serviceUri != null) {
+            serviceRegistry.announce(getServiceName(key), serviceUri);
+        }
+    }
 
-        // Start up all the lifecycles.
-        for (Lifecycle lifecycle : lifecycles) {
-            lifecycle.executeTo(startStage);
+    private void announceForkedService(final ForkedService forkedService)
+    {
+        final URI serviceUri = forkedService.findServiceUri();
+        if (serviceUri != null) {
+            serviceRegistry.announce(forkedService.getServiceName(), serviceUri);
         }
     }
 
-    @Override
-    protected void after()
+    private void stopServices()
     {
+        if (contentionMonitor != null) {
+            contentionMonitor.stop();
+            for (final ContentionReport report : contentionMonitor.getReports().values()) {
+                LOG.info("Contention in %s", report);
+            }
+        }
+        if (cpuProfiler != null) {
+            cpuProfiler.stop();
+            cpuProfiler.write(testName == null ? getClass().getSimpleName() : testName);
+        }
+
+        for (final String serviceName : serviceRegistry.getRegistrations().keySet()) {
+            serviceRegistry.unannounceAll(serviceName);
+        }
+
         // Tear everything down.  Don't bother with error handling, any error here fails the tests.
         for (Lifecycle lifecycle : lifecycles) {
             lifecycle.execute(stopStage);
         }
+
+        ForkedService.stopAll(forkedServices.values());
+
+        executorTracker.shutdown();
+
+        platformMBeanServers.unregisterAll();
+
+        releaseClassLoaders();
+
+        dropDatabases();
+
+        // The test class is only known once JUnit applied the rule, which may be after an asynchronous start.
+        if (environmentStartupNanos > 0 && testClassName != null) {
+            ShardingPlanner.recordTiming(testClassName, fingerprint, TimeUnit.NANOSECONDS.toMillis(environmentStartupNanos));
+        }
+    }
+
+    /**
+     * Export the state of the environment next to the beans of the services, so that a JMX console can watch long running tests.
+     */
+    private void exportEnvironment()
+    {
+        try {
+            final String name = testName == null ? getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this)) : testName;
+            platformMBeanServers.register(new EnvironmentBean(), new ObjectName("com.nesscomputing.testing:type=Environment,name=" + ObjectName.quote(name)));
+        }
+        catch (MalformedObjectNameException mone) {
+            LOG.warn(mone, "Could not export the environment");
+        }
+    }
+
+    private void dropDatabases()
+    {
+        for (final TweakedModule tweakedModule : tweakedModules) {
+            if (tweakedModule instanceof TemplateDatabase) {
+                TemplateDatabase.class.cast(tweakedModule).drop();
+            }
+        }
+    }
+
+    private void releaseClassLoaders()
+    {
+        for (final ServiceClassLoader classLoader : serviceClassLoaders.values()) {
+            classLoader.release();
+        }
+        serviceClassLoaders.clear();
+    }
+
+    @Override
+    public Statement apply(final Statement base, final Description description)
+    {
+        // Remember the test, the CPU profiles are written per test and the startup timings per test class.
+        testClassName = description.getClassName();
+        testName = description.getMethodName() == null ? description.getClassName() : description.getClassName() + "." + description.getMethodName();
+
+        // The services start once, a measured test runs repeatedly inside of them.
+        final Measure measure = description.getAnnotation(Measure.class);
+        return super.apply(measure == null ? base : new MeasureStatement(base, measure, testName, serviceThreadGroups), description);
+    }
+
+    @Override
+    protected void before()
+    {
+        if (servicesStarted == null) {
+            startServices();
+        }
+        else {
+            PENDING_STARTS.remove(this);
+            awaitServices();
+        }
+
+        setupTestCase();
+    }
+
+    @Override
+    protected void after()
+    {
+        stopServices();
     }
 
     /**
@@ -132,8 +694,21 @@ public class IntegrationTestRule extends ExternalResource
      */
     public <T> T exposeBinding(String serviceName, Key<T> key) throws ProvisionException
     {
-        final Injector injector = serviceInjectors.get(serviceName);
-        Preconditions.checkState(injector != null, "Injector for service '%s' does not exist!", serviceName);
+        return exposeBinding(serviceName, 0, key);
+    }
+
+    /**
+     * For a given replica of a service, ask the {@link Injector} for an instance and return it.
+     * @param serviceName the name passed to {@link IntegrationTestRuleBuilder#addService(String, com.nesscomputing.testing.tweaked.TweakedModule, ServiceOptions)}
+     * @param replica the replica number, starting at 0
+     * @param key the {@link Key} to look up
+     * @see ServiceOptions.Builder#setReplicas(int)
+     */
+    public <T> T exposeBinding(String serviceName, int replica, Key<T> key) throws ProvisionException
+    {
+        Preconditions.checkState(!forkedServices.containsKey(serviceName), "Service '%s' runs in a forked JVM!", serviceName);
+        final Injector injector = serviceInjectors.get(getReplicaKey(serviceName, replica));
+        Preconditions.checkState(injector != null, "Injector for replica %s of service '%s' does not exist!", replica, serviceName);
         return injector.getInstance(key);
     }
 
@@ -145,8 +720,637 @@ public class IntegrationTestRule extends ExternalResource
      */
     public URI locateService(String serviceName)
     {
-        final Injector injector = serviceInjectors.get(serviceName);
-        Preconditions.checkState(injector != null, "Injector for service '%s' does not exist!", serviceName);
+        return locateService(serviceName, 0);
+    }
+
+    /**
+     * Get the HTTP URL for accessing a replica of a service under test.
+     * @param replica the replica number, starting at 0
+     * @see ServiceOptions.Builder#setReplicas(int)
+     */
+    public URI locateService(String serviceName, int replica)
+    {
+        final ForkedService forkedService = forkedServices.get(serviceName);
+        if (forkedService != null) {
+            Preconditions.checkState(replica == 0, "Forked service '%s' has no replica %s!", serviceName, replica);
+            final URI serviceUri = forkedService.findServiceUri();
+            Preconditions.checkState(serviceUri != null, "Forked service '%s' has no http server!", serviceName);
+            return serviceUri;
+        }
+
+        final Injector injector = serviceInjectors.get(getReplicaKey(serviceName, replica));
+        Preconditions.checkState(injector != null, "Injector for replica %s of service '%s' does not exist!", replica, serviceName);
         return NessHttpserverHelper.getServiceUri(injector);
     }
+
+    /**
+     * Returns a loader that streams fixture records from files into a service, either over http or through a {@link FixtureSink}
+     * bound in the service.
+     * @param serviceName the name passed to {@link IntegrationTestRuleBuilder#addService(String, com.nesscomputing.testing.tweaked.TweakedModule)}
+     */
+    public FixtureLoader getFixtureLoader(String serviceName)
+    {
+        return new FixtureLoader(this, serviceName);
+    }
+
+    /**
+     * Returns the heap and GC statistics of the JVM that runs a forked service.
+     * @param serviceName the name passed to {@link IntegrationTestRuleBuilder#addService(String, com.nesscomputing.testing.tweaked.TweakedModule, ServiceOptions)}
+     * @throws IllegalStateException if the service does not exist or does not run in a forked JVM
+     */
+    public ForkedJvmStatistics getForkedJvmStatistics(String serviceName)
+    {
+        final ForkedService forkedService = forkedServices.get(serviceName);
+        Preconditions.checkState(forkedService != null, "Forked service '%s' does not exist!", serviceName);
+        return forkedService.getStatistics();
+    }
+
+    /**
+     * Returns the in-memory service registry of this rule. All services with an http server are registered here once they have started,
+     * and {@link com.nesscomputing.testing.tweaked.TweakedModules.TweakEnabler#inMemoryDiscoveryEnabled} resolves <code>srvc://</code> URIs through it.
+     */
+    public InMemoryServiceRegistry getServiceRegistry()
+    {
+        return serviceRegistry;
+    }
+
+    /**
+     * Returns the trace collector of this rule. With {@link com.nesscomputing.testing.tweaked.TweakedModules.TweakEnabler#tracingEnabled}, every
+     * http call between the test case and in-process services is recorded here.
+     */
+    public TraceCollector getTraceCollector()
+    {
+        return traceCollector;
+    }
+
+    /**
+     * Returns the live statistics of the http client of the test case, installed by {@link com.nesscomputing.testing.tweaked.TweakedModules.TweakEnabler#httpClientEnabled}.
+     *
+     * @see IntegrationTestRuleBuilder#setTestClientPool(HttpClientPoolOptions)
+     */
+    public HttpClientStats getTestClientStats()
+    {
+        return testClientStats;
+    }
+
+    /**
+     * Returns the virtual clock that is shared by the test case and all services in the test JVM. Services in a forked JVM have a clock
+     * of their own.
+     *
+     * @see com.nesscomputing.testing.tweaked.TweakedModules.TweakEnabler#virtualClockEnabled
+     */
+    public VirtualClock getVirtualClock()
+    {
+        return virtualClock;
+    }
+
+    /**
+     * Advances the virtual clock and runs all work on its scheduled executor that falls due, before this method returns.
+     */
+    public void advanceTime(final long duration, @Nonnull final TimeUnit unit)
+    {
+        virtualClock.advance(duration, unit);
+    }
+
+    /**
+     * Returns the tracker for the executors of the test case and all services in the test JVM.
+     *
+     * @see com.nesscomputing.testing.tweaked.TrackedExecutorModule
+     */
+    public ExecutorTracker getExecutorTracker()
+    {
+        return executorTracker;
+    }
+
+    /**
+     * Returns the view of the platform MBean server that the services export their beans to.
+     *
+     * @see IntegrationTestRuleBuilder#setPlatformJmx(boolean)
+     */
+    public PlatformMBeanServers getPlatformMBeanServers()
+    {
+        return platformMBeanServers;
+    }
+
+    /**
+     * Returns the time that every service instance in the test JVM took to create its injector and reach its start stage.
+     */
+    public Map<String, Long> getStartupTimes(@Nonnull final TimeUnit unit)
+    {
+        final Map<String, Long> startupTimes = Maps.newTreeMap();
+        for (final Map.Entry<String, Long> entry : startupNanos.entrySet()) {
+            startupTimes.put(entry.getKey(), unit.convert(entry.getValue(), TimeUnit.NANOSECONDS));
+        }
+        return startupTimes;
+    }
+
+    /**
+     * Waits until no tracked executor runs or queues a task. Periodic tasks only count while they are due. Use this instead of sleeping
+     * until background work of the services is done.
+     *
+     * @throws IllegalStateException if there is still work after the timeout.
+     */
+    public void awaitQuiescence(final long timeout, @Nonnull final TimeUnit unit)
+    {
+        try {
+            if (!executorTracker.awaitQuiescence(timeout, unit)) {
+                throw new IllegalStateException(String.format("Executors still busy after %d %s: %s", timeout, unit, executorTracker.getBusyExecutors()));
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(ie);
+        }
+    }
+
+    /**
+     * Returns the counters of the concurrency and bandwidth limits of a service.
+     * @param serviceName the name passed to {@link IntegrationTestRuleBuilder#addService(String, com.nesscomputing.testing.tweaked.TweakedModule, ServiceOptions)}
+     * @throws IllegalStateException if the service does not exist or has no concurrency or bandwidth limit
+     */
+    public ThrottleStats getThrottleStats(final String serviceName)
+    {
+        final ThrottleStats stats = throttleStats.get(serviceName);
+        Preconditions.checkState(stats != null, "Service '%s' does not exist or is not throttled!", serviceName);
+        return stats;
+    }
+
+    /**
+     * Returns the key of the injector for a replica of a service. The first replica uses the service name.
+     */
+    static String getReplicaKey(final String serviceName, final int replica)
+    {
+        return replica == 0 ? serviceName : serviceName + REPLICA_SEPARATOR + replica;
+    }
+
+    static String getServiceName(final String replicaKey)
+    {
+        final int separator = replicaKey.lastIndexOf(REPLICA_SEPARATOR);
+        if (separator < 0 || separator == replicaKey.length() - 1 || !CharMatcher.DIGIT.matchesAllOf(replicaKey.substring(separator + 1))) {
+            return replicaKey;
+        }
+        return replicaKey.substring(0, separator);
+    }
+
+    static int getReplica(final String replicaKey)
+    {
+        final String serviceName = getServiceName(replicaKey);
+        return serviceName.length() == replicaKey.length() ? 0 : Integer.parseInt(replicaKey.substring(serviceName.length() + 1));
+    }
+
+    /**
+     * Returns the estimated heap retained by a service after it reached its start stage.
+     * @param serviceName the name passed to {@link IntegrationTestRuleBuilder#addService(String, com.nesscomputing.testing.tweaked.TweakedModule)},
+     *                    <code>&lt;name&gt;#&lt;n&gt;</code> for additional replicas
+     * @throws IllegalStateException if the service does not exist or the footprint was not measured
+     * @see IntegrationTestRuleBuilder#setHeapFootprint(boolean)
+     */
+    public HeapFootprint getHeapFootprint(final String serviceName)
+    {
+        final HeapFootprint footprint = heapFootprints.get(serviceName);
+        Preconditions.checkState(footprint != null, "No heap footprint for service '%s'!", serviceName);
+        return footprint;
+    }
+
+    /**
+     * Returns the heap footprints of all services running in the test JVM.
+     */
+    public Map<String, HeapFootprint> getHeapFootprints()
+    {
+        return ImmutableMap.copyOf(heapFootprints);
+    }
+
+    /**
+     * Returns the lookups of configuration keys by the test case and the services.
+     * @throws IllegalStateException if config profiling is not enabled
+     * @see IntegrationTestRuleBuilder#setConfigProfiling(boolean)
+     */
+    public ConfigAccessProfiler getConfigAccessProfiler()
+    {
+        Preconditions.checkState(configProfiler != null, "Config profiling is not enabled!");
+        return configProfiler;
+    }
+
+    /**
+     * Returns the thread states and lock contention of a service so far.
+     * @param serviceName the name passed to {@link IntegrationTestRuleBuilder#addService(String, com.nesscomputing.testing.tweaked.TweakedModule)},
+     *                    <code>&lt;name&gt;#&lt;n&gt;</code> for additional replicas
+     * @throws IllegalStateException if the contention monitor is not enabled or the service does not exist
+     * @see IntegrationTestRuleBuilder#setContentionMonitor(boolean)
+     */
+    public ContentionReport getContentionReport(final String serviceName)
+    {
+        Preconditions.checkState(contentionMonitor != null, "The contention monitor is not enabled!");
+        final ContentionReport report = contentionMonitor.getReports().get(serviceName);
+        Preconditions.checkState(report != null, "Service '%s' does not exist!", serviceName);
+        return report;
+    }
+
+    /**
+     * Returns the CPU time and stack samples of a service so far.
+     * @param serviceName the name passed to {@link IntegrationTestRuleBuilder#addService(String, com.nesscomputing.testing.tweaked.TweakedModule)},
+     *                    <code>&lt;name&gt;#&lt;n&gt;</code> for additional replicas
+     * @throws IllegalStateException if the CPU profiler is not enabled or the service does not exist
+     * @see IntegrationTestRuleBuilder#setCpuProfiler(boolean)
+     */
+    public CpuProfile getCpuProfile(final String serviceName)
+    {
+        Preconditions.checkState(cpuProfiler != null, "The CPU profiler is not enabled!");
+        final CpuProfile profile = cpuProfiler.getProfiles().get(serviceName);
+        Preconditions.checkState(profile != null, "Service '%s' does not exist!", serviceName);
+        return profile;
+    }
+
+    /**
+     * Restarts all replicas of a service, one after the other, while the other services keep running. Each replica is removed from
+     * the service registry, its lifecycle is stopped, a new injector is created from the same module and started, and the replica
+     * is announced again once the readiness probes of the service pass. Services in a forked JVM are restarted with a new JVM.
+     * @param serviceName the name passed to {@link IntegrationTestRuleBuilder#addService(String, TweakedModule)}
+     * @throws IllegalArgumentException if the service does not exist
+     */
+    public synchronized void restartService(final String serviceName)
+    {
+        final ForkedService forkedService = forkedServices.get(serviceName);
+        if (forkedService != null) {
+            restartForkedService(forkedService);
+            return;
+        }
+
+        final List<String> keys = getReplicaKeys(serviceName);
+        for (final String key : keys) {
+            restartService(key, services.get(key));
+        }
+    }
+
+    /**
+     * Restarts a single replica of a service.
+     * @param replica the replica number, starting at 0
+     * @see #restartService(String)
+     */
+    public synchronized void restartService(final String serviceName, final int replica)
+    {
+        final String key = getReplicaKey(serviceName, replica);
+        Preconditions.checkArgument(services.containsKey(key), "Replica %s of service '%s' does not exist!", replica, serviceName);
+        restartService(key, services.get(key));
+    }
+
+    /**
+     * Replaces all replicas of a service in the test JVM, one after the other, with a new service module and configuration. The
+     * replacement gets the same service config tweaks from the tweaked modules as the original service. An isolated service stays
+     * isolated, every replica gets a new class loader. Other service options such as throttling are not applied to the replacement.
+     * @param serviceName the name passed to {@link IntegrationTestRuleBuilder#addService(String, TweakedModule)}
+     * @param serviceModule the module of the new service
+     * @param serviceConfig the base configuration of the new service
+     * @throws IllegalArgumentException if the service does not exist or runs in a forked JVM
+     */
+    public synchronized void replaceService(final String serviceName, @Nonnull final TweakedModule serviceModule, @Nonnull final Config serviceConfig)
+    {
+        Preconditions.checkArgument(!forkedServices.containsKey(serviceName), "Service '%s' runs in a forked JVM and can not be replaced!", serviceName);
+
+        final List<String> keys = getReplicaKeys(serviceName);
+        final Config config = getServiceConfig(serviceName, serviceModule, serviceConfig);
+        for (final String key : keys) {
+            final Module module = getServiceModule(serviceName, config, serviceModule);
+            restartService(key, module);
+            services.put(key, module);
+        }
+    }
+
+    /**
+     * Adds an instance of a service to the running environment. If no service with this name is running, the new instance becomes the
+     * service, otherwise it becomes an additional replica. The instance is created, started and, once the readiness probes of the service
+     * pass, announced in the service registry, so that <code>srvc://</code> URIs resolve to it. This is safe while other threads send
+     * requests to the service.
+     *
+     * The instance uses the options that the service was registered with, e.g. it gets a class loader of its own if the service is isolated.
+     * @param serviceName the name of the service
+     * @param serviceModule the module of the service
+     * @param serviceConfig the base configuration of the service
+     * @return the replica number of the new instance
+     * @throws IllegalArgumentException if a service with this name runs in a forked JVM
+     */
+    public synchronized int addService(final String serviceName, @Nonnull final TweakedModule serviceModule, @Nonnull final Config serviceConfig)
+    {
+        return addService(serviceName, serviceModule, serviceConfig, getServiceOptions(serviceName));
+    }
+
+    /**
+     * Adds an instance of a service with options to the running environment. Only isolation and load balancing are applied, the instance
+     * can not run in a forked JVM, and options such as throttling or replicas are ignored.
+     * @see #addService(String, TweakedModule, Config)
+     * @throws IllegalArgumentException if the options ask for a forked JVM, or an instance of the service with different options is running
+     */
+    public synchronized int addService(final String serviceName, @Nonnull final TweakedModule serviceModule, @Nonnull final Config serviceConfig, @Nonnull final ServiceOptions options)
+    {
+        IntegrationTestRuleBuilder.checkServiceName(serviceName);
+        Preconditions.checkArgument(!forkedServices.containsKey(serviceName), "Service '%s' runs in a forked JVM!", serviceName);
+        Preconditions.checkNotNull(options, "the service options must not be null!");
+        Preconditions.checkArgument(!options.isForked(), "Service '%s' can not be added in a forked JVM!", serviceName);
+        Preconditions.checkArgument(options.equals(getServiceOptions(serviceName)) || !isRunning(serviceName), "Service '%s' is already running with other options!", serviceName);
+
+        serviceOptions.put(serviceName, options);
+        serviceRegistry.setLoadBalancing(serviceName, options.getLoadBalancing());
+
+        int replica = 0;
+        while (services.containsKey(getReplicaKey(serviceName, replica))) {
+            replica++;
+        }
+
+        final String key = getReplicaKey(serviceName, replica);
+        final Module module = getServiceModule(serviceName, getServiceConfig(serviceName, serviceModule, serviceConfig), serviceModule);
+
+        LOG.debug("Adding '%s'", key);
+
+        services.put(key, module);
+        try {
+            startService(key, module);
+        }
+        catch (RuntimeException re) {
+            stopService(key);
+            services.remove(key);
+            throw re;
+        }
+        return replica;
+    }
+
+    /**
+     * Removes all instances of a service from the running environment. Every instance is first removed from the service registry, so
+     * that no new requests are sent to it, and then stopped once the requests it is handling have finished.
+     * @param serviceName the name of the service
+     * @throws IllegalArgumentException if the service does not exist or runs in a forked JVM
+     */
+    public synchronized void removeService(final String serviceName)
+    {
+        Preconditions.checkArgument(!forkedServices.containsKey(serviceName), "Service '%s' runs in a forked JVM and can not be removed!", serviceName);
+
+        for (final String key : getReplicaKeys(serviceName)) {
+            removeServiceInstance(key);
+        }
+    }
+
+    /**
+     * Removes a single replica of a service from the running environment.
+     * @param replica the replica number, starting at 0
+     * @see #removeService(String)
+     */
+    public synchronized void removeService(final String serviceName, final int replica)
+    {
+        final String key = getReplicaKey(serviceName, replica);
+        Preconditions.checkArgument(services.containsKey(key), "Replica %s of service '%s' does not exist!", replica, serviceName);
+        removeServiceInstance(key);
+    }
+
+    private void removeServiceInstance(final String key)
+    {
+        LOG.debug("Removing '%s'", key);
+
+        stopService(key);
+        services.remove(key);
+    }
+
+    /**
+     * Wait until a service instance has finished the requests it is handling. Gives up after {@link InFlightRequestFilter#DRAIN_TIMEOUT_MILLIS}.
+     */
+    private void drainInstance(final String key)
+    {
+        final InFlightRequestFilter requests = inFlightRequests.remove(key);
+        if (requests != null && !requests.awaitDrained(InFlightRequestFilter.DRAIN_TIMEOUT_MILLIS)) {
+            LOG.warn("'%s' still handles %d requests after %d ms, stopping it anyway.", key, requests.getInFlight(), InFlightRequestFilter.DRAIN_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Returns the module for a new instance of a service in the test JVM. The module of an isolated service loads its classes from the
+     * context class loader when the injector is created, see {@link #startService(String, Module)}.
+     */
+    private Module getServiceModule(final String serviceName, final Config config, final TweakedModule serviceModule)
+    {
+        if (getServiceOptions(serviceName).isIsolated()) {
+            return IntegrationTestRuleBuilder.getIsolatedServiceModule(serviceName, config, tweakedModules, serviceModule);
+        }
+        return IntegrationTestRuleBuilder.getServiceModule(serviceName, config, tweakedModules, serviceModule);
+    }
+
+    private ServiceOptions getServiceOptions(final String serviceName)
+    {
+        final ServiceOptions options = serviceOptions.get(serviceName);
+        return options == null ? ServiceOptions.DEFAULT_OPTIONS : options;
+    }
+
+    private boolean isRunning(final String serviceName)
+    {
+        for (final String key : services.keySet()) {
+            if (serviceName.equals(getServiceName(key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Config getServiceConfig(final String serviceName, final TweakedModule serviceModule, final Config serviceConfig)
+    {
+        Preconditions.checkNotNull(serviceModule, "the service module must not be null!");
+        Preconditions.checkNotNull(serviceConfig, "the service config must not be null!");
+
+        final Config config = Config.getOverriddenConfig(serviceConfig,
+                                                         new MapConfiguration(serviceConfigTweaks),
+                                                         new MapConfiguration(serviceModule.getServiceConfigTweaks()));
+        return configProfiler == null ? config : configProfiler.profile(serviceName, config);
+    }
+
+    /**
+     * Returns the keys of all replicas of a service in the test JVM, in order of their replica number.
+     */
+    private List<String> getReplicaKeys(final String serviceName)
+    {
+        final List<String> keys = Lists.newArrayList();
+        for (final String key : services.keySet()) {
+            if (serviceName.equals(getServiceName(key))) {
+                keys.add(key);
+            }
+        }
+        Preconditions.checkArgument(!keys.isEmpty(), "Service '%s' does not exist!", serviceName);
+        Collections.sort(keys, REPLICA_ORDER);
+        return keys;
+    }
+
+    private void restartService(final String key, final Module module)
+    {
+        stopService(key);
+
+        LOG.debug("Restarting '%s'", key);
+
+        startService(key, module);
+    }
+
+    /**
+     * Removes a service instance from the service registry, stops its lifecycle, its tracked executors and its virtual clock tasks, and releases
+     * its class loader. An instance that was announced keeps running until the requests it is handling have finished.
+     */
+    private void stopService(final String key)
+    {
+        final Injector oldInjector = serviceInjectors.remove(key);
+        if (oldInjector != null) {
+            final URI serviceUri = NessHttpserverHelper.findServiceUri(oldInjector);
+            if (serviceUri != null && serviceRegistry.lookup(getServiceName(key)).contains(serviceUri)) {
+                serviceRegistry.unannounce(getServiceName(key), serviceUri);
+                drainInstance(key);
+            }
+        }
+        inFlightRequests.remove(key);
+
+        final Lifecycle oldLifecycle = serviceLifecycles.remove(key);
+        if (oldLifecycle != null) {
+            lifecycles.remove(oldLifecycle);
+            oldLifecycle.execute(stopStage);
+        }
+
+        // A new instance registers its beans under the same names.
+        platformMBeanServers.unregister(key);
+
+        executorTracker.shutdown(key);
+        virtualClock.cancel(key);
+
+        final ServiceClassLoader classLoader = serviceClassLoaders.remove(key);
+        if (classLoader != null) {
+            classLoader.release();
+        }
+    }
+
+    /**
+     * Creates and starts a service instance and announces it once it is ready. Every instance of an isolated service gets a new class loader.
+     */
+    private void startService(final String key, final Module module)
+    {
+        final String serviceName = getServiceName(key);
+
+        final ServiceOptions options = getServiceOptions(serviceName);
+        if (options.isIsolated()) {
+            serviceClassLoaders.put(key, new ServiceClassLoader(key, options.getSharedPackages()));
+        }
+
+        createServiceInjector(key, module);
+        final Lifecycle lifecycle = serviceLifecycles.get(key);
+        if (lifecycle != null) {
+            startLifecycle(key, lifecycle);
+        }
+
+        awaitReadiness(key);
+
+        announceService(key);
+    }
+
+    private void restartForkedService(final ForkedService forkedService)
+    {
+        final URI oldServiceUri = forkedService.findServiceUri();
+        if (oldServiceUri != null) {
+            // The forked JVM drains its requests itself before it stops.
+            serviceRegistry.unannounce(forkedService.getServiceName(), oldServiceUri);
+        }
+
+        LOG.debug("Restarting forked service '%s'", forkedService.getServiceName());
+
+        forkedService.stop();
+        try {
+            forkedService.start();
+        }
+        catch (IOException ioe) {
+            throw Throwables.propagate(ioe);
+        }
+
+        awaitReadiness(forkedService.getServiceName());
+
+        announceForkedService(forkedService);
+    }
+
+    /**
+     * Returns the readiness probes of every service instance, keyed by instance. Every replica of a service is probed.
+     */
+    private Multimap<String, ReadinessProbe> getInstanceProbes()
+    {
+        final Multimap<String, ReadinessProbe> probes = ArrayListMultimap.create();
+        for (final String serviceName : readinessProbes.keySet()) {
+            boolean found = false;
+            for (final String key : services.keySet()) {
+                if (serviceName.equals(getServiceName(key))) {
+                    probes.putAll(key, readinessProbes.get(serviceName));
+                    found = true;
+                }
+            }
+            // Forked services have a single instance under the service name.
+            if (!found) {
+                probes.putAll(serviceName, readinessProbes.get(serviceName));
+            }
+        }
+        return probes;
+    }
+
+    /**
+     * Waits until the probes of a service pass for one of its instances.
+     */
+    private void awaitReadiness(final String key)
+    {
+        final Multimap<String, ReadinessProbe> probes = ArrayListMultimap.create();
+        probes.putAll(key, readinessProbes.get(getServiceName(key)));
+        ReadinessProbes.awaitAll(this, probes, readinessTimeoutMillis);
+    }
+
+    private final class EnvironmentBean implements EnvironmentMXBean
+    {
+        @Override
+        public String getTestName()
+        {
+            return testName;
+        }
+
+        @Override
+        public long getUptimeMillis()
+        {
+            return startedNanos == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+        }
+
+        @Override
+        public List<String> getServices()
+        {
+            final List<String> keys = Lists.newArrayList(serviceInjectors.keySet());
+            Collections.sort(keys);
+            return keys;
+        }
+
+        @Override
+        public List<String> getForkedServices()
+        {
+            final List<String> names = Lists.newArrayList(forkedServices.keySet());
+            Collections.sort(names);
+            return names;
+        }
+
+        @Override
+        public Map<String, Long> getStartupMillis()
+        {
+            return getStartupTimes(TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int getActiveTestClientRequests()
+        {
+            return testClientStats.getInFlight();
+        }
+
+        @Override
+        public Map<String, Integer> getActiveServiceRequests()
+        {
+            final Map<String, Integer> activeRequests = Maps.newTreeMap();
+            for (final Map.Entry<String, ThrottleStats> entry : throttleStats.entrySet()) {
+                activeRequests.put(entry.getKey(), entry.getValue().getActiveRequests());
+            }
+            return activeRequests;
+        }
+
+        @Override
+        public Map<String, Integer> getBusyExecutors()
+        {
+            return executorTracker.getBusyExecutors();
+        }
+    }
 }
@@ -15,14 +15,26 @@
  */
 package com.nesscomputing.testing;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.inject.Binder;
 import com.google.inject.Injector;
 import com.google.inject.Module;
@@ -30,6 +42,7 @@ import com.google.inject.Provider;
 import com.google.inject.name.Names;
 import com.google.inject.util.Modules;
 
+import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.MapConfiguration;
 import org.junit.Rule;
 
@@ -37,7 +50,9 @@ import com.nesscomputing.config.Config;
 import com.nesscomputing.config.ConfigModule;
 import com.nesscomputing.lifecycle.Lifecycle;
 import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.testing.tweaked.ProvisionProfiler;
 import com.nesscomputing.testing.tweaked.TweakedModule;
+import com.nesscomputing.testing.tweaked.TweakedModuleSpecs;
 import com.nesscomputing.testing.tweaked.TweakedModules;
 import com.nesscomputing.testing.tweaked.TweakedModules.TweakEnabler;
 
@@ -74,11 +89,22 @@ public class IntegrationTestRuleBuilder
     private final Map<String, ServiceDefinition> serviceDefinitions = Maps.newHashMap();
     private final Map<String, TweakedModule> serviceTweakedModules = Maps.newHashMap();
     private final Map<String, Config> serviceConfigs = Maps.newHashMap();
+    private final Map<String, ServiceOptions> serviceOptions = Maps.newHashMap();
     private final List<TweakedModule> tweakedModules = Lists.newArrayList();
 
     private LifecycleStage startStage = LifecycleStage.ANNOUNCE_STAGE;
     private LifecycleStage stopStage = LifecycleStage.STOP_STAGE;
 
+    private boolean classPreloading = false;
+    private boolean asyncStart = false;
+    private long startupTimeoutMillis = TimeUnit.MINUTES.toMillis(5);
+    private final Multimap<String, ReadinessProbe> readinessProbes = ArrayListMultimap.create();
+    private long readinessTimeoutMillis = TimeUnit.MINUTES.toMillis(1);
+    private boolean heapFootprint = false;
+    private boolean configProfiling = false;
+    private boolean contentionMonitoring = false;
+    private boolean cpuProfiling = false;
+
     private Config baseConfig = Config.getEmptyConfig();
     private Map<String, String> configKeys = Maps.newHashMap();
 
@@ -96,7 +122,8 @@ public class IntegrationTestRuleBuilder
     };
 
     /**
-     * Return a default {@link IntegrationTestRuleBuilder}. This builder enables everything listed in {@link TweakedModules.TweakEnabler}.
+     * Return a default {@link IntegrationTestRuleBuilder}. This builder enables the lifecycle, jackson, http client, jersey, galaxy, http server, jmx, metrics,
+     * service tweaks and thread delegated scope modules from {@link TweakedModules.TweakEnabler}. All other enablers are opt-in.
      */
     public static final IntegrationTestRuleBuilder defaultBuilder()
     {
@@ -200,6 +227,7 @@ public class IntegrationTestRuleBuilder
     @Deprecated
     public IntegrationTestRuleBuilder addService(String serviceName, final ServiceDefinition definition)
     {
+        checkServiceName(serviceName);
         serviceDefinitions.put(serviceName, definition);
         return this;
     }
@@ -212,6 +240,7 @@ public class IntegrationTestRuleBuilder
      */
     public IntegrationTestRuleBuilder addService(String serviceName, final TweakedModule tweakedModule)
     {
+        checkServiceName(serviceName);
         serviceTweakedModules.put(serviceName, tweakedModule);
         return this;
     }
@@ -226,11 +255,65 @@ public class IntegrationTestRuleBuilder
      */
     public IntegrationTestRuleBuilder addService(String serviceName, final Config serviceConfig, final TweakedModule tweakedModule)
     {
+        checkServiceName(serviceName);
+        serviceTweakedModules.put(serviceName, tweakedModule);
+        serviceConfigs.put(serviceName, serviceConfig);
+        return this;
+    }
+
+    /**
+     * Register a service to be managed by this integration test rule with additional options, e.g. to run the service in its own JVM.
+     * @param serviceName the name to expose to HttpClient as
+     * @param definition the definition for this service environment.
+     * @param options the options for this service.
+     * @return the builder
+     */
+    public IntegrationTestRuleBuilder addService(String serviceName, final TweakedModule tweakedModule, @Nonnull final ServiceOptions options)
+    {
+        checkServiceName(serviceName);
+        checkServiceOptions(tweakedModule, options);
+        serviceTweakedModules.put(serviceName, tweakedModule);
+        serviceOptions.put(serviceName, options);
+        return this;
+    }
+
+    /**
+     * Register a service to be managed by this integration test rule with its own configuration and additional options.
+     * @param serviceName the name to expose to HttpClient as.
+     * @param serviceConfig the configuration to use for this service.
+     * @param definition the definition for this service environment.
+     * @param options the options for this service.
+     * @return the builder
+     */
+    public IntegrationTestRuleBuilder addService(String serviceName, final Config serviceConfig, final TweakedModule tweakedModule, @Nonnull final ServiceOptions options)
+    {
+        checkServiceName(serviceName);
+        checkServiceOptions(tweakedModule, options);
         serviceTweakedModules.put(serviceName, tweakedModule);
         serviceConfigs.put(serviceName, serviceConfig);
+        serviceOptions.put(serviceName, options);
         return this;
     }
 
+    /**
+     * Service names must not contain the separator of the replica number, see {@link IntegrationTestRule#getReplicaKey(String, int)}.
+     */
+    static void checkServiceName(final String serviceName)
+    {
+        Preconditions.checkNotNull(serviceName, "The service name must not be null!");
+        Preconditions.checkArgument(serviceName.indexOf(IntegrationTestRule.REPLICA_SEPARATOR) < 0, "The service name '%s' must not contain '%s'!",
+                                    serviceName, IntegrationTestRule.REPLICA_SEPARATOR);
+    }
+
+    private void checkServiceOptions(final TweakedModule tweakedModule, final ServiceOptions options)
+    {
+        Preconditions.checkNotNull(options, "The service options must not be null!");
+        Preconditions.checkArgument(!options.isForked() || TweakedModuleSpecs.isConvertible(tweakedModule), "The module %s can not be used in a forked service!", tweakedModule);
+        Preconditions.checkArgument(!options.isForked() || !options.isThrottled(), "Concurrency and bandwidth limits are not supported for forked services!");
+        Preconditions.checkArgument(!options.isForked() || options.getReplicas() == 1, "Replicas are not supported for forked services!");
+        Preconditions.checkArgument(!options.isIsolated() || TweakedModuleSpecs.isConvertible(tweakedModule), "The module %s can not be used in an isolated service!", tweakedModule);
+    }
+
     /**
      * Register a mocking service that is designed to be used for testing and mixes in functionality into
      * the environment
@@ -263,6 +346,17 @@ public class IntegrationTestRuleBuilder
         return this;
     }
 
+    /**
+     * Set the connection pool of the http client of the test case. Use {@link IntegrationTestRule#getTestClientStats()} to see
+     * how the pool is used.
+     */
+    public IntegrationTestRuleBuilder setTestClientPool(@Nonnull final HttpClientPoolOptions poolOptions)
+    {
+        Preconditions.checkNotNull(poolOptions, "The pool options must not be null!");
+        configKeys.putAll(poolOptions.getConfigTweaks());
+        return this;
+    }
+
     /**
      * Set the start stage for the services in this integration test.
      */
@@ -283,6 +377,211 @@ public class IntegrationTestRuleBuilder
         return this;
     }
 
+    /**
+     * Load the classes of the tweaked modules and of the frameworks used by the services on background threads as soon as the rule is
+     * built. The classes used by the services are recorded and preloaded by later runs.
+     */
+    public IntegrationTestRuleBuilder setClassPreloading(final boolean classPreloading)
+    {
+        this.classPreloading = classPreloading;
+        return this;
+    }
+
+    /**
+     * Start creating the service injectors and lifecycles on a background thread as soon as the rule is built. The rule then only waits for
+     * the services when it triggers, so that other rules and the test class initialization can run in the meantime. The test case itself is
+     * still injected when the rule triggers.
+     * <p>
+     * If JUnit never applies the rule, because an outer rule or the test class initialization failed or the test was skipped, the services
+     * keep running until the next rule is started asynchronously on the same thread for another test case, or until the JVM exits.
+     */
+    public IntegrationTestRuleBuilder setAsyncStart(final boolean asyncStart)
+    {
+        this.asyncStart = asyncStart;
+        return this;
+    }
+
+    /**
+     * Set the maximum time that the rule waits for services that were started asynchronously.
+     */
+    public IntegrationTestRuleBuilder setStartupTimeout(final long startupTimeout, @Nonnull final TimeUnit unit)
+    {
+        Preconditions.checkArgument(startupTimeout > 0, "The startup timeout must be positive!");
+        this.startupTimeoutMillis = unit.toMillis(startupTimeout);
+        return this;
+    }
+
+    /**
+     * Add a probe that must pass before the named service is considered ready. All probes are polled in parallel with exponential backoff
+     * after the lifecycles have reached the start stage, and the rule waits until all of them pass.
+     *
+     * @see ReadinessProbes
+     */
+    public IntegrationTestRuleBuilder addReadinessProbe(final String serviceName, @Nonnull final ReadinessProbe readinessProbe)
+    {
+        checkServiceName(serviceName);
+        Preconditions.checkNotNull(readinessProbe, "The readiness probe must not be null!");
+        readinessProbes.put(serviceName, readinessProbe);
+        return this;
+    }
+
+    /**
+     * Set the maximum time to wait for all readiness probes to pass.
+     */
+    public IntegrationTestRuleBuilder setReadinessTimeout(final long readinessTimeout, @Nonnull final TimeUnit unit)
+    {
+        Preconditions.checkArgument(readinessTimeout > 0, "The readiness timeout must be positive!");
+        this.readinessTimeoutMillis = unit.toMillis(readinessTimeout);
+        return this;
+    }
+
+    /**
+     * Measure the heap retained by every service in the test JVM after the start stage. This runs garbage collections and walks
+     * the object graph of each injector, so it slows down the startup.
+     *
+     * @see IntegrationTestRule#getHeapFootprint(String)
+     */
+    public IntegrationTestRuleBuilder setHeapFootprint(final boolean heapFootprint)
+    {
+        this.heapFootprint = heapFootprint;
+        return this;
+    }
+
+    /**
+     * Count all configuration lookups of the test case and the services in the test JVM per key and calling site. This makes every
+     * lookup much slower, so only use it to find lookups that should be cached.
+     *
+     * @see IntegrationTestRule#getConfigAccessProfiler()
+     */
+    public IntegrationTestRuleBuilder setConfigProfiling(final boolean configProfiling)
+    {
+        this.configProfiling = configProfiling;
+        return this;
+    }
+
+    /**
+     * Sample the thread states and lock contention of every service in the test JVM while the rule is active. The services are
+     * created and started on threads in their own thread groups, so that their threads can be told apart. The results are logged
+     * when the services stop.
+     *
+     * @see IntegrationTestRule#getContentionReport(String)
+     */
+    public IntegrationTestRuleBuilder setContentionMonitor(final boolean contentionMonitoring)
+    {
+        this.contentionMonitoring = contentionMonitoring;
+        return this;
+    }
+
+    /**
+     * Sample the stacks and CPU time of every service in the test JVM while the rule is active. When the services stop, the stacks
+     * are written per test and service in collapsed format, which flame graph tools read directly, together with a summary of the
+     * CPU time per service. The output directory is set with the <code>ness.testing.profile-dir</code> system property and
+     * defaults to <code>target/ness-profiles</code>.
+     *
+     * @see IntegrationTestRule#getCpuProfile(String)
+     */
+    public IntegrationTestRuleBuilder setCpuProfiler(final boolean cpuProfiling)
+    {
+        this.cpuProfiling = cpuProfiling;
+        return this;
+    }
+
+    /**
+     * Export the MBeans of the test case and all services to the platform MBean server instead of the testing dummy, so that a JMX console
+     * attached to the test JVM can watch them while the test runs. Every service gets its own domain prefix. The rule also exports the
+     * state of the environment as {@link EnvironmentMXBean}. All beans are unregistered when the services stop.
+     *
+     * This replaces {@link TweakEnabler#jmxEnabled} with {@link TweakEnabler#platformJmxEnabled} and back.
+     */
+    public IntegrationTestRuleBuilder setPlatformJmx(final boolean platformJmx)
+    {
+        final TweakedModule remove = (platformJmx ? TweakEnabler.jmxEnabled : TweakEnabler.platformJmxEnabled).get();
+        final TweakedModule add = (platformJmx ? TweakEnabler.platformJmxEnabled : TweakEnabler.jmxEnabled).get();
+
+        final int index = tweakedModules.indexOf(remove);
+        if (index >= 0) {
+            tweakedModules.set(index, add);
+        }
+        else if (platformJmx && !tweakedModules.contains(add)) {
+            tweakedModules.add(add);
+        }
+        return this;
+    }
+
+    /**
+     * Returns a fingerprint of the environment that this builder sets up: the tweaked modules, the services with their modules, configuration
+     * and options, the test configuration and the lifecycle stages. Two builders with the same fingerprint start the same services, so a
+     * JVM that started one of them has already loaded and compiled most of what the other one needs.
+     *
+     * Modules that can not be described by a spec contribute their class names, and so do readiness probes that were not created by
+     * {@link ReadinessProbes}.
+     *
+     * @see ShardingPlanner
+     */
+    @SuppressWarnings("deprecation")
+    public String getFingerprint()
+    {
+        final Hasher hasher = Hashing.sha1().newHasher();
+
+        putString(hasher, startStage.getName());
+        putString(hasher, stopStage.getName());
+        for (final TweakedModule tweakedModule : tweakedModules) {
+            putString(hasher, describeModule(tweakedModule));
+        }
+        putConfig(hasher, baseConfig.getConfiguration());
+        putConfig(hasher, new MapConfiguration(configKeys));
+
+        for (final String serviceName : Sets.newTreeSet(serviceDefinitions.keySet())) {
+            putString(hasher, serviceName);
+            putString(hasher, serviceDefinitions.get(serviceName).getClass().getName());
+        }
+
+        for (final String serviceName : Sets.newTreeSet(serviceTweakedModules.keySet())) {
+            putString(hasher, serviceName);
+            putString(hasher, describeModule(serviceTweakedModules.get(serviceName)));
+            if (serviceConfigs.containsKey(serviceName)) {
+                putConfig(hasher, serviceConfigs.get(serviceName).getConfiguration());
+            }
+
+            final ServiceOptions options = serviceOptions.containsKey(serviceName) ? serviceOptions.get(serviceName) : ServiceOptions.DEFAULT_OPTIONS;
+            putString(hasher, Joiner.on(',').join(options.isForked(), options.getJvmArguments(), options.isIsolated(), options.getSharedPackages(), options.getReplicas(),
+                                                  options.getLoadBalancing(), options.getMaxWorkerThreads(), options.getMaxConcurrentRequests(),
+                                                  options.getRequestQueueSize(), options.getRequestQueueTimeoutMillis(), options.getBandwidthLimit()));
+            putConfig(hasher, new MapConfiguration(options.getConfigTweaks()));
+        }
+
+        for (final String serviceName : Sets.newTreeSet(readinessProbes.keySet())) {
+            putString(hasher, serviceName);
+            for (final ReadinessProbe readinessProbe : readinessProbes.get(serviceName)) {
+                putString(hasher, ReadinessProbes.describe(readinessProbe));
+            }
+        }
+
+        return hasher.hash().toString();
+    }
+
+    private static String describeModule(final TweakedModule tweakedModule)
+    {
+        final String moduleSpec = TweakedModuleSpecs.toSpec(tweakedModule);
+        return moduleSpec != null ? moduleSpec : Sets.newTreeSet(TweakedModuleSpecs.getClassNames(tweakedModule)).toString();
+    }
+
+    private static void putConfig(final Hasher hasher, final Configuration configuration)
+    {
+        final Map<String, String> values = Maps.newTreeMap();
+        for (final Iterator<?> it = configuration.getKeys(); it.hasNext(); ) {
+            final String key = it.next().toString();
+            values.put(key, configuration.getString(key));
+        }
+        putString(hasher, values.toString());
+    }
+
+    private static void putString(final Hasher hasher, final String value)
+    {
+        // Length prefixed, so that adjacent values can not run into each other.
+        hasher.putInt(value.length()).putString(value, Charsets.UTF_8);
+    }
+
     /**
      * Builds the rule so that JUnit may run it
      * @param testCaseItself pass in the test case object so that Guice may perform field injection
@@ -310,6 +609,15 @@ public class IntegrationTestRuleBuilder
      */
     public IntegrationTestRule build(final Object testCaseItself, @Nonnull final Module testCaseModule)
     {
+        for (final String serviceName : readinessProbes.keySet()) {
+            Preconditions.checkState(serviceDefinitions.containsKey(serviceName) || serviceTweakedModules.containsKey(serviceName),
+                                     "Readiness probe for unknown service '%s'!", serviceName);
+        }
+
+        if (classPreloading) {
+            preloadClasses(testCaseModule);
+        }
+
         //
         // Override the test case config with the tweaks exposed by the tweaked services.
         //
@@ -324,7 +632,9 @@ public class IntegrationTestRuleBuilder
         //
         // Build the test case module.
         //
-        final Config testCaseConfig = Config.getOverriddenConfig(baseConfig, new MapConfiguration(testCaseConfigTweaks), new MapConfiguration(configKeys));
+        final ConfigAccessProfiler configProfiler = configProfiling ? new ConfigAccessProfiler() : null;
+        final Config testCaseConfig = profileConfig(configProfiler, TweakedModule.TEST_CASE_NAME,
+                                                    Config.getOverriddenConfig(baseConfig, new MapConfiguration(testCaseConfigTweaks), new MapConfiguration(configKeys)));
         final Module module = new Module() {
             @Override
             public void configure(final Binder binder) {
@@ -341,20 +651,57 @@ public class IntegrationTestRuleBuilder
         // Build the service modules.
         //
         final Map<String, Module> serviceModules = Maps.newHashMap();
-        addServiceDefinitions(serviceDefinitions, serviceConfigTweaks, serviceModules);
-        addServiceModules(serviceTweakedModules, serviceConfigTweaks, serviceModules);
+        final Map<String, ForkedService> forkedServices = Maps.newHashMap();
+        addServiceDefinitions(serviceDefinitions, serviceConfigTweaks, serviceModules, configProfiler);
+        final Map<String, ThrottleStats> throttleStats = Maps.newHashMap();
+        final Map<String, ServiceClassLoader> serviceClassLoaders = Maps.newHashMap();
+        addServiceModules(serviceTweakedModules, serviceConfigTweaks, serviceModules, forkedServices, throttleStats, serviceClassLoaders, configProfiler);
+
+        final IntegrationTestRule rule = new IntegrationTestRule(serviceModules,
+                                                                 forkedServices,
+                                                                 startStage,
+                                                                 stopStage,
+                                                                 module,
+                                                                 testCaseItself,
+                                                                 classPreloading,
+                                                                 startupTimeoutMillis,
+                                                                 ImmutableListMultimap.copyOf(readinessProbes),
+                                                                 readinessTimeoutMillis,
+                                                                 throttleStats,
+                                                                 heapFootprint,
+                                                                 configProfiler,
+                                                                 contentionMonitoring,
+                                                                 cpuProfiling,
+                                                                 tweakedModules,
+                                                                 serviceConfigTweaks,
+                                                                 serviceClassLoaders,
+                                                                 serviceOptions,
+                                                                 getFingerprint());
+
+        for (final Map.Entry<String, ServiceOptions> entry : serviceOptions.entrySet()) {
+            rule.getServiceRegistry().setLoadBalancing(entry.getKey(), entry.getValue().getLoadBalancing());
+        }
 
-        return new IntegrationTestRule(serviceModules,
-                                       startStage,
-                                       stopStage,
-                                       module,
-                                       testCaseItself);
+        if (asyncStart) {
+            rule.startAsync();
+        }
+        return rule;
+    }
+
+    private void preloadClasses(final Module testCaseModule)
+    {
+        final Set<String> classNames = Sets.newHashSet(testCaseModule.getClass().getName());
+        for (final TweakedModule tweakedModule : Iterables.concat(tweakedModules, serviceTweakedModules.values())) {
+            classNames.addAll(TweakedModuleSpecs.getClassNames(tweakedModule));
+        }
+        ClassPreloader.preload(classNames);
     }
 
     @SuppressWarnings("deprecation")
     private void addServiceDefinitions(final Map<String, ServiceDefinition> serviceDefinitions,
                                        final Map<String, String> serviceConfigTweaks,
-                                       final Map<String, Module> serviceModules)
+                                       final Map<String, Module> serviceModules,
+                                       final ConfigAccessProfiler configProfiler)
     {
         for (final Map.Entry<String, ServiceDefinition> entry : serviceDefinitions.entrySet()) {
             // Reality is that this is the service configuration minus what a service definition might add as local tweaks
@@ -371,7 +718,7 @@ public class IntegrationTestRuleBuilder
             //
             // That is an actual problem and another reason why ServiceDefinition does not work.
             //
-            final Config serviceConfig = Config.getOverriddenConfig(baseConfig, new MapConfiguration(serviceConfigTweaks));
+            final Config serviceConfig = profileConfig(configProfiler, entry.getKey(), Config.getOverriddenConfig(baseConfig, new MapConfiguration(serviceConfigTweaks)));
 
             final Module serviceModule = new Module() {
                 @Override
@@ -395,7 +742,11 @@ public class IntegrationTestRuleBuilder
 
     private void addServiceModules(final Map<String, TweakedModule> serviceDefinitions, // NOPMD -- now why the fsck is that needed here? This method is used just fine.
                                    final Map<String, String> serviceConfigTweaks,
-                                   final Map<String, Module> serviceModules)
+                                   final Map<String, Module> serviceModules,
+                                   final Map<String, ForkedService> forkedServices,
+                                   final Map<String, ThrottleStats> throttleStats,
+                                   final Map<String, ServiceClassLoader> serviceClassLoaders,
+                                   final ConfigAccessProfiler configProfiler)
     {
         for (final Map.Entry<String, TweakedModule> entry : serviceDefinitions.entrySet()) {
 
@@ -403,27 +754,95 @@ public class IntegrationTestRuleBuilder
             // tweaks if present, otherwise use the base configuration.
             final Config serviceBaseConfig = serviceConfigs.containsKey(entry.getKey()) ? serviceConfigs.get(entry.getKey()) : baseConfig;
 
+            final ServiceOptions options = serviceOptions.containsKey(entry.getKey()) ? serviceOptions.get(entry.getKey()) : ServiceOptions.DEFAULT_OPTIONS;
+
             final Config serviceConfig = Config.getOverriddenConfig(serviceBaseConfig,
                                                                     new MapConfiguration(serviceConfigTweaks),
-                                                                    new MapConfiguration(entry.getValue().getServiceConfigTweaks()));
+                                                                    new MapConfiguration(entry.getValue().getServiceConfigTweaks()),
+                                                                    new MapConfiguration(options.getConfigTweaks()));
 
-            final Module serviceModule = new Module() {
-                @Override
-                public void configure(final Binder binder) {
-                    // This allows us to later ask an injector what it is named.
-                    binder.bindConstant().annotatedWith(Names.named("SERVICE")).to(entry.getKey());
+            if (options.isForked()) {
+                forkedServices.put(entry.getKey(), ForkedService.forService(entry.getKey(), serviceConfig, tweakedModules, entry.getValue(), startStage, stopStage, options));
+            }
+            else {
+                final Config profiledConfig = profileConfig(configProfiler, entry.getKey(), serviceConfig);
+                final ThrottleStats stats = options.isThrottled() ? new ThrottleStats() : null;
+                if (stats != null) {
+                    throttleStats.put(entry.getKey(), stats);
+                }
 
-                    for (TweakedModule tweakedModule : tweakedModules) {
-                        binder.install(tweakedModule.getServiceModule(serviceConfig));
+                // Every replica gets its own injector and, if isolated, its own class loader. The replicas share the throttle stats of the service.
+                for (int replica = 0; replica < options.getReplicas(); replica++) {
+                    final String replicaKey = IntegrationTestRule.getReplicaKey(entry.getKey(), replica);
+                    final Module serviceModule;
+                    if (options.isIsolated()) {
+                        serviceClassLoaders.put(replicaKey, new ServiceClassLoader(replicaKey, options.getSharedPackages()));
+                        serviceModule = getIsolatedServiceModule(entry.getKey(), profiledConfig, tweakedModules, entry.getValue());
+                    }
+                    else {
+                        serviceModule = getServiceModule(entry.getKey(), profiledConfig, tweakedModules, entry.getValue());
                     }
+                    serviceModules.put(replicaKey, stats == null ? serviceModule : Modules.combine(serviceModule, ThrottlingFilter.getModule(options, stats)));
+                }
+            }
+        }
+    }
 
-                    binder.install(new ConfigModule(serviceConfig));
+    private static Config profileConfig(final ConfigAccessProfiler configProfiler, final String serviceName, final Config config)
+    {
+        return configProfiler == null ? config : configProfiler.profile(serviceName, config);
+    }
 
-                    binder.install(entry.getValue().getServiceModule(serviceConfig));
+    /**
+     * Returns the module for a service registered with a tweaked module. This is also used to create services outside of the builder, e.g. in
+     * a forked JVM.
+     */
+    static Module getServiceModule(final String serviceName,
+                                   final Config serviceConfig,
+                                   final List<TweakedModule> tweakedModules,
+                                   final TweakedModule serviceTweakedModule)
+    {
+        return new Module() {
+            @Override
+            public void configure(final Binder binder) {
+                // This allows us to later ask an injector what it is named.
+                binder.bindConstant().annotatedWith(Names.named("SERVICE")).to(serviceName);
+
+                for (TweakedModule tweakedModule : tweakedModules) {
+                    binder.install(tweakedModule.getServiceModule(serviceConfig));
                 }
-            };
 
-            serviceModules.put(entry.getKey(), serviceModule);
-        }
+                binder.install(new ConfigModule(serviceConfig));
+
+                binder.install(serviceTweakedModule.getServiceModule(serviceConfig));
+            }
+        };
+    }
+
+    /**
+     * Returns the module for an isolated service. The tweaked modules are recreated from their specs when the injector is created, so that
+     * their classes come from the context class loader, i.e. the class loader of the service. Tweaked modules that can not be recreated are
+     * shared with the test.
+     */
+    static Module getIsolatedServiceModule(final String serviceName,
+                                           final Config serviceConfig,
+                                           final List<TweakedModule> tweakedModules,
+                                           final TweakedModule serviceTweakedModule)
+    {
+        final String serviceModuleSpec = TweakedModuleSpecs.toSpec(serviceTweakedModule);
+        Preconditions.checkArgument(serviceModuleSpec != null, "The module %s can not be used in an isolated service!", serviceTweakedModule);
+
+        return new Module() {
+            @Override
+            public void configure(final Binder binder) {
+                final List<TweakedModule> isolatedModules = Lists.newArrayList();
+                for (final TweakedModule tweakedModule : tweakedModules) {
+                    final String moduleSpec = TweakedModuleSpecs.toSpec(tweakedModule);
+                    isolatedModules.add(moduleSpec == null ? tweakedModule : TweakedModuleSpecs.fromSpec(moduleSpec));
+                }
+
+                binder.install(getServiceModule(serviceName, serviceConfig, isolatedModules, TweakedModuleSpecs.fromSpec(serviceModuleSpec)));
+            }
+        };
     }
 }
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Runs a test method repeatedly against the environment of the {@link IntegrationTestRule}. The services are started once, the test
+ * first runs once, then for the warm-up iterations, whose results are discarded, and then for the measurement iterations. Every
+ * iteration runs the test exactly as JUnit runs it the first time, including the <code>@Before</code> and <code>@After</code> methods,
+ * <code>expected</code> and <code>timeout</code> of <code>@Test</code> and all rules inside of the integration test rule, and all of
+ * that is timed. Time and allocations of every measured iteration are summarized in a {@link Measurement}, which is logged and written
+ * into the profile directory.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Measure
+{
+    /** Number of iterations that are run before measuring. */
+    int warmupIterations() default 10;
+
+    /** Number of measured iterations. */
+    int iterations() default 100;
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.runners.model.Statement;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Evaluates a test repeatedly, see {@link Measure}. Every iteration evaluates the same statement that JUnit evaluates, so it runs the
+ * <code>@Before</code> and <code>@After</code> methods, honors <code>expected</code> and <code>timeout</code> of <code>@Test</code>
+ * and goes through all rules inside of the integration test rule.
+ */
+final class MeasureStatement extends Statement
+{
+    private static final Log LOG = Log.findLog();
+
+    private final Statement base;
+    private final Measure measure;
+    private final String testName;
+    private final ServiceThreadGroups serviceThreadGroups;
+
+    /**
+     * @param serviceThreadGroups the thread groups of the services or null.
+     */
+    MeasureStatement(final Statement base,
+                     final Measure measure,
+                     final String testName,
+                     final ServiceThreadGroups serviceThreadGroups)
+    {
+        Preconditions.checkArgument(measure.warmupIterations() >= 0, "the warm-up iterations must not be negative!");
+        Preconditions.checkArgument(measure.iterations() > 0, "at least one iteration must be measured!");
+        this.base = base;
+        this.measure = measure;
+        this.testName = testName;
+        this.serviceThreadGroups = serviceThreadGroups;
+    }
+
+    @Override
+    public void evaluate() throws Throwable
+    {
+        base.evaluate();
+
+        for (int i = 0; i < measure.warmupIterations(); i++) {
+            base.evaluate();
+        }
+
+        final long [] measuredNanos = new long [measure.iterations()];
+        long measuredBytes = 0;
+        for (int i = 0; i < measuredNanos.length; i++) {
+            final Map<Long, Long> allocatedBefore = getAllocatedBytes();
+            final long start = System.nanoTime();
+            base.evaluate();
+            measuredNanos[i] = System.nanoTime() - start;
+
+            final long allocatedBytes = getAllocatedBytesSince(allocatedBefore);
+            measuredBytes = (measuredBytes < 0 || allocatedBytes < 0) ? -1 : measuredBytes + allocatedBytes;
+        }
+
+        final Measurement measurement = new Measurement(testName, measuredNanos, measuredBytes);
+        LOG.info("%s", measurement);
+        write(measurement);
+    }
+
+    private void write(final Measurement measurement)
+    {
+        final File profileDir = new File(System.getProperty(CpuProfiler.PROFILE_DIR_PROPERTY, CpuProfiler.DEFAULT_PROFILE_DIR));
+        if (!profileDir.isDirectory() && !profileDir.mkdirs()) {
+            LOG.warn("Could not create %s, skipping measurement report", profileDir);
+            return;
+        }
+
+        try {
+            Files.write(measurement + "\n", new File(profileDir, testName.replaceAll("[^A-Za-z0-9._-]", "_") + "-measure.txt"), Charsets.UTF_8);
+        }
+        catch (IOException ioe) {
+            LOG.warn(ioe, "Could not write measurement to %s", profileDir);
+        }
+    }
+
+    /**
+     * Returns the bytes allocated so far by the test thread and all threads of the services, keyed by thread id, or null if the JVM does
+     * not count them. Without thread groups for the services, all threads of the JVM are counted.
+     */
+    private Map<Long, Long> getAllocatedBytes()
+    {
+        try {
+            final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                final com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+                if (sunThreadMXBean.isThreadAllocatedMemorySupported() && sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+                    final long [] ids = getThreadIds(threadMXBean);
+                    final long [] bytes = sunThreadMXBean.getThreadAllocatedBytes(ids);
+                    final Map<Long, Long> result = Maps.newHashMap();
+                    for (int i = 0; i < ids.length; i++) {
+                        if (bytes[i] >= 0) {
+                            result.put(ids[i], bytes[i]);
+                        }
+                    }
+                    return result;
+                }
+            }
+        }
+        catch (NoClassDefFoundError ncdfe) {
+            LOG.trace(ncdfe, "Allocations are not available on this JVM");
+        }
+        return null;
+    }
+
+    /**
+     * Returns the bytes allocated since the given snapshot, -1 if the JVM does not count them. Threads that ended in the meantime are
+     * not counted, threads that started in the meantime are counted in full.
+     */
+    private long getAllocatedBytesSince(final Map<Long, Long> allocatedBefore)
+    {
+        final Map<Long, Long> allocatedAfter = getAllocatedBytes();
+        if (allocatedBefore == null || allocatedAfter == null) {
+            return -1;
+        }
+
+        long bytes = 0;
+        for (final Map.Entry<Long, Long> entry : allocatedAfter.entrySet()) {
+            final Long before = allocatedBefore.get(entry.getKey());
+            bytes += entry.getValue() - (before == null ? 0 : before);
+        }
+        return bytes;
+    }
+
+    private long [] getThreadIds(final ThreadMXBean threadMXBean)
+    {
+        if (serviceThreadGroups == null) {
+            return threadMXBean.getAllThreadIds();
+        }
+
+        final List<Thread> threads = Lists.newArrayList(Thread.currentThread());
+        for (final ThreadGroup threadGroup : serviceThreadGroups.getThreadGroups().values()) {
+            threads.addAll(ServiceThreadGroups.getThreads(threadGroup));
+        }
+
+        final long [] ids = new long [threads.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = threads.get(i).getId();
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Time and allocations of the measured iterations of a test method.
+ *
+ * @see Measure
+ */
+public final class Measurement
+{
+    private final String testName;
+    private final long [] sortedNanos;
+    private final long allocatedBytes;
+
+    Measurement(final String testName, final long [] iterationNanos, final long allocatedBytes)
+    {
+        Preconditions.checkArgument(iterationNanos.length > 0, "no iterations measured!");
+        this.testName = testName;
+        this.sortedNanos = iterationNanos.clone();
+        Arrays.sort(sortedNanos);
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    public String getTestName()
+    {
+        return testName;
+    }
+
+    public int getIterations()
+    {
+        return sortedNanos.length;
+    }
+
+    public double getMeanNanos()
+    {
+        double sum = 0;
+        for (final long nanos : sortedNanos) {
+            sum += nanos;
+        }
+        return sum / sortedNanos.length;
+    }
+
+    /**
+     * Sample standard deviation of the iteration times.
+     */
+    public double getStandardDeviationNanos()
+    {
+        if (sortedNanos.length < 2) {
+            return 0;
+        }
+
+        final double mean = getMeanNanos();
+        double squares = 0;
+        for (final long nanos : sortedNanos) {
+            squares += (nanos - mean) * (nanos - mean);
+        }
+        return Math.sqrt(squares / (sortedNanos.length - 1));
+    }
+
+    /**
+     * Returns the time that the given fraction of iterations did not exceed, e.g. 0.99 for the 99th percentile.
+     */
+    public long getPercentile(final double fraction, final TimeUnit unit)
+    {
+        Preconditions.checkArgument(fraction > 0 && fraction <= 1, "the fraction must be in (0, 1]!");
+        final int index = (int) Math.ceil(fraction * sortedNanos.length) - 1;
+        return unit.convert(sortedNanos[Math.max(index, 0)], TimeUnit.NANOSECONDS);
+    }
+
+    public long getMin(final TimeUnit unit)
+    {
+        return unit.convert(sortedNanos[0], TimeUnit.NANOSECONDS);
+    }
+
+    public long getMax(final TimeUnit unit)
+    {
+        return unit.convert(sortedNanos[sortedNanos.length - 1], TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Bytes allocated per iteration by the test thread and the threads of the services, -1 if the JVM does not count allocations
+     * per thread.
+     */
+    public long getAllocatedBytesPerIteration()
+    {
+        return allocatedBytes < 0 ? -1 : allocatedBytes / sortedNanos.length;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %d iterations, mean %.3f ms +- %.3f ms, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms, %d bytes allocated per iteration",
+                             testName,
+                             sortedNanos.length,
+                             getMeanNanos() / 1000000.0,
+                             getStandardDeviationNanos() / 1000000.0,
+                             getPercentile(0.5, TimeUnit.MICROSECONDS) / 1000.0,
+                             getPercentile(0.9, TimeUnit.MICROSECONDS) / 1000.0,
+                             getPercentile(0.99, TimeUnit.MICROSECONDS) / 1000.0,
+                             getMax(TimeUnit.MICROSECONDS) / 1000.0,
+                             getAllocatedBytesPerIteration());
+    }
+}
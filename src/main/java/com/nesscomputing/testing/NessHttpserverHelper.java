@@ -20,6 +20,7 @@ import java.net.URISyntaxException;
 
 import com.google.common.collect.Iterables;
 import com.google.inject.Injector;
+import com.google.inject.Key;
 
 import com.nesscomputing.httpserver.HttpConnector;
 import com.nesscomputing.httpserver.HttpServer;
@@ -35,6 +36,23 @@ final class NessHttpserverHelper
 
     private NessHttpserverHelper() { }
 
+    /**
+     * Returns the URI of the http server of a service or null if the service has no http server or ness-httpserver
+     * is not available.
+     */
+    static URI findServiceUri(Injector injector)
+    {
+        try {
+            if (injector.getExistingBinding(Key.get(HttpServer.class)) == null) {
+                return null;
+            }
+        }
+        catch (NoClassDefFoundError ncdfe) {
+            return null;
+        }
+        return getServiceUri(injector);
+    }
+
     static URI getServiceUri(Injector injector)
     {
         HttpServer server = injector.getInstance(HttpServer.class);
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+/**
+ * Checks whether a service managed by the integration test rule is ready to be used. Probes are registered with
+ * {@link IntegrationTestRuleBuilder#addReadinessProbe(String, ReadinessProbe)} and polled after the service lifecycles
+ * have reached their start stage. {@link ReadinessProbes} contains the commonly used probes.
+ */
+public interface ReadinessProbe
+{
+    /**
+     * Returns true if the service is ready. Throwing an exception counts as not ready.
+     *
+     * @param rule the rule that manages the service. Use {@link IntegrationTestRule#locateService(String, int)} or
+     *             {@link IntegrationTestRule#exposeBinding(String, int, com.google.inject.Key)} to look at the service.
+     * @param serviceName the name of the probed service.
+     * @param replica the probed replica of the service. Every replica is probed on its own.
+     */
+    boolean isReady(IntegrationTestRule rule, String serviceName, int replica) throws Exception;
+}
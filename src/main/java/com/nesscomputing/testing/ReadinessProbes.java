@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Key;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Commonly used {@link ReadinessProbe}s.
+ */
+public final class ReadinessProbes
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final long INITIAL_BACKOFF_MILLIS = 5;
+    private static final long MAX_BACKOFF_MILLIS = 500;
+    private static final int HTTP_TIMEOUT_MILLIS = 1000;
+
+    private ReadinessProbes()
+    {
+    }
+
+    /**
+     * A probe that sends a GET request to the given path on the http server of the service. The service is ready when the
+     * request returns a 2xx status code. The path is relative to the root of the server, a missing leading slash is added.
+     */
+    public static ReadinessProbe httpPath(@Nonnull final String httpPath)
+    {
+        Preconditions.checkNotNull(httpPath, "the path must not be null!");
+
+        // The service URI has an empty path, resolving a relative path against it would append it to the port.
+        final String path = httpPath.startsWith("/") ? httpPath : "/" + httpPath;
+        return new DescribedProbe("GET " + path) {
+            @Override
+            public boolean isReady(final IntegrationTestRule rule, final String serviceName, final int replica) throws Exception {
+                final HttpURLConnection connection = (HttpURLConnection) rule.locateService(serviceName, replica).resolve(path).toURL().openConnection();
+                try {
+                    connection.setConnectTimeout(HTTP_TIMEOUT_MILLIS);
+                    connection.setReadTimeout(HTTP_TIMEOUT_MILLIS);
+                    final int status = connection.getResponseCode();
+                    return status >= 200 && status < 300;
+                }
+                finally {
+                    connection.disconnect();
+                }
+            }
+        };
+    }
+
+    /**
+     * A probe that retrieves a binding from the service and applies a predicate to it.
+     */
+    public static <T> ReadinessProbe binding(@Nonnull final Key<T> key, @Nonnull final Predicate<? super T> predicate)
+    {
+        // The predicate is described by its class, its string representation may contain an identity hash code.
+        return new DescribedProbe("binding " + key + " matches " + predicate.getClass().getName()) {
+            @Override
+            public boolean isReady(final IntegrationTestRule rule, final String serviceName, final int replica) {
+                return predicate.apply(rule.exposeBinding(serviceName, replica, key));
+            }
+        };
+    }
+
+    /**
+     * A probe that retrieves a binding from the service and applies a predicate to it.
+     */
+    public static <T> ReadinessProbe binding(@Nonnull final Class<T> clazz, @Nonnull final Predicate<? super T> predicate)
+    {
+        return binding(Key.get(clazz), predicate);
+    }
+
+    /**
+     * Returns a description of a probe that is the same in every JVM. Probes that are not created by this class are described by their class name.
+     */
+    static String describe(final ReadinessProbe probe)
+    {
+        return (probe instanceof DescribedProbe) ? probe.toString() : probe.getClass().getName();
+    }
+
+    /**
+     * Polls all probes in parallel, each with exponential backoff, until all of them pass. The probes are keyed by service instance,
+     * i.e. the service name for the first replica and <code>&lt;name&gt;#&lt;n&gt;</code> for the others.
+     *
+     * @throws IllegalStateException if not all probes passed within the timeout.
+     */
+    static void awaitAll(final IntegrationTestRule rule, final Multimap<String, ReadinessProbe> probes, final long timeoutMillis)
+    {
+        if (probes.isEmpty()) {
+            return;
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("readiness-probe-%d").setDaemon(true).build());
+
+        try {
+            final List<Future<Boolean>> futures = Lists.newArrayList();
+            for (final Map.Entry<String, ReadinessProbe> entry : probes.entries()) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws InterruptedException {
+                        return poll(rule, entry.getKey(), entry.getValue(), deadline);
+                    }
+                }));
+            }
+
+            final List<String> failures = Lists.newArrayList();
+            int index = 0;
+            for (final Map.Entry<String, ReadinessProbe> entry : probes.entries()) {
+                if (!futures.get(index++).get()) {
+                    failures.add(String.format("%s (%s)", entry.getKey(), entry.getValue()));
+                }
+            }
+
+            if (!failures.isEmpty()) {
+                throw new IllegalStateException(String.format("Services not ready after %d ms: %s", timeoutMillis, failures));
+            }
+        }
+        catch (ExecutionException ee) {
+            throw Throwables.propagate(ee.getCause());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(ie);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static boolean poll(final IntegrationTestRule rule, final String key, final ReadinessProbe probe, final long deadline)
+        throws InterruptedException
+    {
+        final String serviceName = IntegrationTestRule.getServiceName(key);
+        final int replica = IntegrationTestRule.getReplica(key);
+
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        while (true) {
+            try {
+                if (probe.isReady(rule, serviceName, replica)) {
+                    return true;
+                }
+            }
+            catch (Exception e) {
+                LOG.trace("Service '%s' not ready (%s): %s", key, probe, e);
+            }
+
+            final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return false;
+            }
+
+            Thread.sleep(Math.min(backoffMillis, remainingMillis));
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    private abstract static class DescribedProbe implements ReadinessProbe
+    {
+        private final String description;
+
+        DescribedProbe(final String description)
+        {
+            this.description = description;
+        }
+
+        @Override
+        public String toString()
+        {
+            return description;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Child-first class loader for an isolated service. It loads all classes from the class path of the test JVM itself, except for the
+ * shared packages, which come from the test class loader. Resources are looked up parent first.
+ *
+ * @see ServiceOptions.Builder#setIsolated(boolean)
+ */
+final class ServiceClassLoader extends URLClassLoader
+{
+    /** Packages that every isolated service shares with the test, the harness and everything it hands to the services. */
+    static final List<String> SHARED_PACKAGES = ImmutableList.of("java.",
+                                                                 "javax.",
+                                                                 "sun.",
+                                                                 "com.sun.",
+                                                                 "org.junit.",
+                                                                 "org.hamcrest.",
+                                                                 "org.aopalliance.",
+                                                                 "com.google.inject.",
+                                                                 "com.google.common.",
+                                                                 "org.apache.commons.configuration.",
+                                                                 "org.slf4j.",
+                                                                 "org.apache.log4j.",
+                                                                 "com.nesscomputing.testing.",
+                                                                 "com.nesscomputing.config.",
+                                                                 "com.nesscomputing.lifecycle.",
+                                                                 "com.nesscomputing.logging.",
+                                                                 "com.nesscomputing.httpserver.",
+                                                                 "com.nesscomputing.httpclient.");
+
+    private static final Log LOG = Log.findLog();
+
+    /** Class loaders that were closed, but not necessarily collected yet. */
+    private static final List<WeakReference<ServiceClassLoader>> RELEASED = new CopyOnWriteArrayList<WeakReference<ServiceClassLoader>>();
+
+    private final String serviceName;
+    private final List<String> sharedPackages;
+
+    ServiceClassLoader(final String serviceName, final List<String> sharedPackages)
+    {
+        super(getClassPath(), ServiceClassLoader.class.getClassLoader());
+        this.serviceName = serviceName;
+        this.sharedPackages = ImmutableList.copyOf(Iterables.concat(SHARED_PACKAGES, sharedPackages));
+    }
+
+    String getServiceName()
+    {
+        return serviceName;
+    }
+
+    @Override
+    protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException
+    {
+        if (isShared(name)) {
+            return super.loadClass(name, resolve);
+        }
+
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> clazz = findLoadedClass(name);
+            if (clazz == null) {
+                try {
+                    clazz = findClass(name);
+                }
+                catch (ClassNotFoundException cnfe) {
+                    clazz = super.loadClass(name, false);
+                }
+            }
+            if (resolve) {
+                resolveClass(clazz);
+            }
+            return clazz;
+        }
+    }
+
+    private boolean isShared(final String className)
+    {
+        for (final String sharedPackage : sharedPackages) {
+            if (className.startsWith(sharedPackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a task that runs with this class loader as context class loader. Threads started by the task inherit it.
+     */
+    <T> Callable<T> withContextClassLoader(final Callable<T> callable)
+    {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final Thread thread = Thread.currentThread();
+                final ClassLoader contextClassLoader = thread.getContextClassLoader();
+                thread.setContextClassLoader(ServiceClassLoader.this);
+                try {
+                    return callable.call();
+                }
+                finally {
+                    thread.setContextClassLoader(contextClassLoader);
+                }
+            }
+        };
+    }
+
+    /**
+     * Closes the class loader after its service has stopped. Whether it was actually collected is checked by {@link #checkReleased()}.
+     */
+    void release()
+    {
+        try {
+            close();
+        }
+        catch (IOException ioe) {
+            LOG.warn(ioe, "While closing the class loader of service '%s'", serviceName);
+        }
+        RELEASED.add(new WeakReference<ServiceClassLoader>(this));
+    }
+
+    /**
+     * Warns about all released class loaders that are still reachable. Every class loader is checked once, usually when the next
+     * environment starts. A leaked class loader keeps all classes of its service in metaspace.
+     */
+    static void checkReleased()
+    {
+        if (RELEASED.isEmpty()) {
+            return;
+        }
+
+        final List<WeakReference<ServiceClassLoader>> released = Lists.newArrayList(RELEASED);
+        RELEASED.removeAll(released);
+
+        System.gc();
+        for (final WeakReference<ServiceClassLoader> reference : released) {
+            final ServiceClassLoader classLoader = reference.get();
+            if (classLoader != null) {
+                LOG.warn("The class loader of service '%s' was not released. A thread, thread local or static field outside of the service still refers to it.", classLoader.getServiceName());
+            }
+        }
+    }
+
+    private static URL [] getClassPath()
+    {
+        final List<URL> urls = Lists.newArrayList();
+        for (final String element : Splitter.on(File.pathSeparatorChar).omitEmptyStrings().split(System.getProperty("java.class.path"))) {
+            try {
+                urls.add(new File(element).toURI().toURL());
+            }
+            catch (MalformedURLException mue) {
+                throw Throwables.propagate(mue);
+            }
+        }
+        return urls.toArray(new URL [urls.size()]);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ServiceClassLoader[" + serviceName + "]";
+    }
+}
@@ -0,0 +1,371 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import com.nesscomputing.testing.tweaked.LoadBalancingStrategy;
+
+/**
+ * Options for a single service registered with {@link IntegrationTestRuleBuilder#addService(String, com.nesscomputing.testing.tweaked.TweakedModule, ServiceOptions)}.
+ */
+public final class ServiceOptions
+{
+    /** Options for a service that runs inside the test JVM. */
+    public static final ServiceOptions DEFAULT_OPTIONS = builder().build();
+
+    private final boolean forked;
+    private final List<String> jvmArguments;
+    private final long startupTimeoutMillis;
+    private final int maxWorkerThreads;
+    private final int maxConcurrentRequests;
+    private final int requestQueueSize;
+    private final long requestQueueTimeoutMillis;
+    private final long bandwidthLimit;
+    private final int replicas;
+    private final LoadBalancingStrategy loadBalancing;
+    private final boolean isolated;
+    private final List<String> sharedPackages;
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    private ServiceOptions(final Builder builder)
+    {
+        this.forked = builder.forked;
+        this.jvmArguments = ImmutableList.copyOf(builder.jvmArguments);
+        this.startupTimeoutMillis = builder.startupTimeoutMillis;
+        this.maxWorkerThreads = builder.maxWorkerThreads;
+        this.maxConcurrentRequests = builder.maxConcurrentRequests;
+        this.requestQueueSize = builder.requestQueueSize;
+        this.requestQueueTimeoutMillis = builder.requestQueueTimeoutMillis;
+        this.bandwidthLimit = builder.bandwidthLimit;
+        this.replicas = builder.replicas;
+        this.loadBalancing = builder.loadBalancing;
+        this.isolated = builder.isolated;
+        this.sharedPackages = ImmutableList.copyOf(builder.sharedPackages);
+    }
+
+    /**
+     * True if the service runs in its own JVM.
+     */
+    public boolean isForked()
+    {
+        return forked;
+    }
+
+    /**
+     * Additional arguments for the JVM of a forked service, e.g. heap size or GC settings.
+     */
+    public List<String> getJvmArguments()
+    {
+        return jvmArguments;
+    }
+
+    /**
+     * Maximum time to wait for a forked service to start.
+     */
+    public long getStartupTimeoutMillis()
+    {
+        return startupTimeoutMillis;
+    }
+
+    /**
+     * Maximum number of http server worker threads, 0 if not limited.
+     */
+    public int getMaxWorkerThreads()
+    {
+        return maxWorkerThreads;
+    }
+
+    /**
+     * Maximum number of requests that the service handles at the same time, 0 if not limited.
+     */
+    public int getMaxConcurrentRequests()
+    {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Number of requests that wait for a slot when the concurrency limit is reached. Further requests are rejected.
+     */
+    public int getRequestQueueSize()
+    {
+        return requestQueueSize;
+    }
+
+    /**
+     * Maximum time that a queued request waits for a slot before it is rejected.
+     */
+    public long getRequestQueueTimeoutMillis()
+    {
+        return requestQueueTimeoutMillis;
+    }
+
+    /**
+     * Maximum number of response bytes per second, 0 if not limited.
+     */
+    public long getBandwidthLimit()
+    {
+        return bandwidthLimit;
+    }
+
+    /**
+     * Number of instances of the service that the rule starts under the service name.
+     */
+    public int getReplicas()
+    {
+        return replicas;
+    }
+
+    /**
+     * The strategy that spreads <code>srvc://</code> requests over the replicas of the service.
+     */
+    public LoadBalancingStrategy getLoadBalancing()
+    {
+        return loadBalancing;
+    }
+
+    /**
+     * True if the classes of the service are loaded by a class loader of its own.
+     */
+    public boolean isIsolated()
+    {
+        return isolated;
+    }
+
+    /**
+     * Additional packages that an isolated service loads from the test class loader.
+     */
+    public List<String> getSharedPackages()
+    {
+        return sharedPackages;
+    }
+
+    /**
+     * True if requests to the service pass through the throttling filter.
+     */
+    boolean isThrottled()
+    {
+        return maxConcurrentRequests > 0 || bandwidthLimit > 0;
+    }
+
+    /**
+     * Config tweaks that apply the options to the service configuration.
+     */
+    Map<String, String> getConfigTweaks()
+    {
+        if (maxWorkerThreads == 0) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.of("ness.httpserver.max-threads", Integer.toString(maxWorkerThreads),
+                               "ness.httpserver.min-threads", Integer.toString(Math.min(2, maxWorkerThreads)));
+    }
+
+    @Override
+    public boolean equals(final Object other)
+    {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ServiceOptions)) {
+            return false;
+        }
+        final ServiceOptions that = (ServiceOptions) other;
+        return forked == that.forked
+            && startupTimeoutMillis == that.startupTimeoutMillis
+            && maxWorkerThreads == that.maxWorkerThreads
+            && maxConcurrentRequests == that.maxConcurrentRequests
+            && requestQueueSize == that.requestQueueSize
+            && requestQueueTimeoutMillis == that.requestQueueTimeoutMillis
+            && bandwidthLimit == that.bandwidthLimit
+            && replicas == that.replicas
+            && isolated == that.isolated
+            && loadBalancing == that.loadBalancing
+            && jvmArguments.equals(that.jvmArguments)
+            && sharedPackages.equals(that.sharedPackages);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hashCode(forked, jvmArguments, startupTimeoutMillis, maxWorkerThreads, maxConcurrentRequests, requestQueueSize,
+                                requestQueueTimeoutMillis, bandwidthLimit, replicas, loadBalancing, isolated, sharedPackages);
+    }
+
+    public static final class Builder
+    {
+        private boolean forked = false;
+        private final List<String> jvmArguments = Lists.newArrayList();
+        private long startupTimeoutMillis = TimeUnit.MINUTES.toMillis(1);
+        private int maxWorkerThreads = 0;
+        private int maxConcurrentRequests = 0;
+        private int requestQueueSize = 0;
+        private long requestQueueTimeoutMillis = 0;
+        private long bandwidthLimit = 0;
+        private int replicas = 1;
+        private LoadBalancingStrategy loadBalancing = LoadBalancingStrategy.ROUND_ROBIN;
+        private boolean isolated = false;
+        private final List<String> sharedPackages = Lists.newArrayList();
+
+        private Builder()
+        {
+        }
+
+        /**
+         * Run the service in a child JVM on the local machine. The tweaked module of the service and all the tweaked modules
+         * of the builder are recreated in the child JVM, so they must be convertible by {@link com.nesscomputing.testing.tweaked.TweakedModuleSpecs}.
+         */
+        public Builder setForked(final boolean forked)
+        {
+            this.forked = forked;
+            return this;
+        }
+
+        /**
+         * Add arguments for the child JVM of a forked service.
+         */
+        public Builder addJvmArguments(@Nonnull final String ... jvmArguments)
+        {
+            for (final String jvmArgument : jvmArguments) {
+                this.jvmArguments.add(jvmArgument);
+            }
+            return this;
+        }
+
+        /**
+         * Set the maximum time to wait for a forked service to start.
+         */
+        public Builder setStartupTimeout(final long startupTimeout, @Nonnull final TimeUnit unit)
+        {
+            Preconditions.checkArgument(startupTimeout > 0, "The startup timeout must be positive!");
+            this.startupTimeoutMillis = unit.toMillis(startupTimeout);
+            return this;
+        }
+
+        /**
+         * Limit the number of worker threads of the http server of the service. Note that the server needs some of the
+         * threads for its connectors.
+         */
+        public Builder setMaxWorkerThreads(final int maxWorkerThreads)
+        {
+            Preconditions.checkArgument(maxWorkerThreads > 0, "The maximum number of worker threads must be positive!");
+            this.maxWorkerThreads = maxWorkerThreads;
+            return this;
+        }
+
+        /**
+         * Limit the number of requests that the service handles at the same time. Requests over the limit are rejected with
+         * 503, unless a request queue is set.
+         */
+        public Builder setMaxConcurrentRequests(final int maxConcurrentRequests)
+        {
+            Preconditions.checkArgument(maxConcurrentRequests > 0, "The maximum number of concurrent requests must be positive!");
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        /**
+         * Let up to queueSize requests over the concurrency limit wait for a slot for at most the given time.
+         */
+        public Builder setRequestQueue(final int queueSize, final long timeout, @Nonnull final TimeUnit unit)
+        {
+            Preconditions.checkArgument(queueSize >= 0, "The request queue size must not be negative!");
+            Preconditions.checkArgument(timeout >= 0, "The request queue timeout must not be negative!");
+            this.requestQueueSize = queueSize;
+            this.requestQueueTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Limit the number of response bytes per second over all requests of the service.
+         */
+        public Builder setBandwidthLimit(final long bytesPerSecond)
+        {
+            Preconditions.checkArgument(bytesPerSecond > 0, "The bandwidth limit must be positive!");
+            this.bandwidthLimit = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Start the given number of instances of the service. Every replica has its own injector and is registered under the service
+         * name in the service registry of the rule, so the http server of the service must use a random port. Limits apply to each
+         * replica on its own.
+         */
+        public Builder setReplicas(final int replicas)
+        {
+            Preconditions.checkArgument(replicas > 0, "The number of replicas must be positive!");
+            this.replicas = replicas;
+            return this;
+        }
+
+        /**
+         * Set the strategy that spreads <code>srvc://</code> requests over the replicas. The default is round robin.
+         */
+        public Builder setLoadBalancing(@Nonnull final LoadBalancingStrategy loadBalancing)
+        {
+            Preconditions.checkNotNull(loadBalancing, "The load balancing strategy must not be null!");
+            this.loadBalancing = loadBalancing;
+            return this;
+        }
+
+        /**
+         * Load the classes of the service child-first in a class loader of its own, so that static state of the service, e.g. metrics
+         * registries or Jackson caches, does not collide with other services in the test JVM. The harness, Guice, Guava and the
+         * ness config, lifecycle, logging, http server and http client APIs are always shared with the test. Like for a forked
+         * service, the tweaked module of the service must be convertible by {@link com.nesscomputing.testing.tweaked.TweakedModuleSpecs}.
+         * Every replica gets its own class loader, the class loaders are closed when the services stop.
+         */
+        public Builder setIsolated(final boolean isolated)
+        {
+            this.isolated = isolated;
+            return this;
+        }
+
+        /**
+         * Share further packages between an isolated service and the test, e.g. API classes that the test retrieves with
+         * {@link IntegrationTestRule#exposeBinding(String, com.google.inject.Key)}.
+         * @param packageNames package names, e.g. <code>com.example.api</code>
+         */
+        public Builder addSharedPackages(@Nonnull final String ... packageNames)
+        {
+            for (final String packageName : packageNames) {
+                Preconditions.checkArgument(packageName != null && !packageName.isEmpty(), "The package name must not be empty!");
+                this.sharedPackages.add(packageName.endsWith(".") ? packageName : packageName + ".");
+            }
+            return this;
+        }
+
+        public ServiceOptions build()
+        {
+            Preconditions.checkState(requestQueueSize == 0 || maxConcurrentRequests > 0, "A request queue needs a concurrency limit!");
+            Preconditions.checkState(!(forked && isolated), "A service can not be forked and isolated at the same time!");
+            return new ServiceOptions(this);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * One thread group per service. Each service injector is created and started on a thread in its group, so all threads that the
+ * service starts, e.g. the http server pool, belong to the group as well and can be attributed to the service.
+ */
+final class ServiceThreadGroups
+{
+    private final ConcurrentMap<String, ThreadGroup> threadGroups = Maps.newConcurrentMap();
+
+    /**
+     * Runs a task on a thread in the thread group of a service and waits for it.
+     */
+    <T> T runInService(final String serviceName, final Callable<T> callable)
+    {
+        final FutureTask<T> task = new FutureTask<T>(callable);
+        new Thread(getThreadGroup(serviceName), task, "start-" + serviceName).start();
+        try {
+            return task.get();
+        }
+        catch (ExecutionException ee) {
+            throw Throwables.propagate(ee.getCause());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(ie);
+        }
+    }
+
+    Map<String, ThreadGroup> getThreadGroups()
+    {
+        return ImmutableMap.copyOf(threadGroups);
+    }
+
+    /**
+     * Returns the live threads of a service.
+     */
+    static List<Thread> getThreads(final ThreadGroup threadGroup)
+    {
+        final Thread [] threads = new Thread [threadGroup.activeCount() * 2 + 1];
+        final int count = threadGroup.enumerate(threads, true);
+        return Arrays.asList(threads).subList(0, count);
+    }
+
+    private ThreadGroup getThreadGroup(final String serviceName)
+    {
+        ThreadGroup threadGroup = threadGroups.get(serviceName);
+        if (threadGroup == null) {
+            final ThreadGroup newThreadGroup = new ThreadGroup("service-" + serviceName);
+            threadGroup = threadGroups.putIfAbsent(serviceName, newThreadGroup);
+            if (threadGroup == null) {
+                threadGroup = newThreadGroup;
+            }
+        }
+        return threadGroup;
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Assigns test classes to surefire forks, so that classes which build the same environment run in the same fork. A fork that starts an
+ * environment a second time finds its classes loaded and compiled, so the second start is much cheaper than the first one in another fork.
+ *
+ * Every integration test rule records the fingerprint of its environment (see {@link IntegrationTestRuleBuilder#getFingerprint()}) and the
+ * time it took to start in <code>startup-timings.txt</code> in the profile directory. The planner groups the recorded test classes by
+ * fingerprint and hands the groups with the longest startup time to the least loaded fork first. Test classes without a recording are
+ * spread over the forks afterwards, so that every fork runs about the same number of them.
+ *
+ * Run it with the output directory, the number of forks and optionally the test classes directory. It writes one
+ * <code>fork-&lt;n&gt;.includes</code> file per fork, to be passed to surefire as <code>includesFile</code>.
+ */
+public final class ShardingPlanner
+{
+    private static final Log LOG = Log.findLog();
+
+    static final String TIMINGS_FILE = "startup-timings.txt";
+
+    private static final Splitter TAB_SPLITTER = Splitter.on('\t');
+    private static final Joiner TAB_JOINER = Joiner.on('\t');
+
+    private final Map<String, String> fingerprints = Maps.newHashMap();
+    private final Map<String, Long> startupMillis = Maps.newHashMap();
+    private final Map<String, Integer> startups = Maps.newHashMap();
+    private final Set<String> testClasses = Sets.newTreeSet();
+
+    public static void main(final String [] args) throws IOException
+    {
+        Preconditions.checkArgument(args.length == 2 || args.length == 3, "Usage: ShardingPlanner <output dir> <forks> [<test classes dir>]");
+
+        final ShardingPlanner planner = new ShardingPlanner();
+        planner.readTimings(new File(getProfileDir(), TIMINGS_FILE));
+        if (args.length == 3) {
+            planner.scanTestClasses(new File(args[2]));
+        }
+
+        final File outputDir = new File(args[0]);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Could not create " + outputDir);
+        }
+
+        final List<List<String>> forks = planner.plan(Integer.parseInt(args[1]));
+        for (int fork = 0; fork < forks.size(); fork++) {
+            final StringBuilder sb = new StringBuilder();
+            for (final String testClass : forks.get(fork)) {
+                sb.append(testClass.replace('.', '/')).append(".java\n");
+            }
+            Files.write(sb, new File(outputDir, "fork-" + fork + ".includes"), Charsets.UTF_8);
+        }
+    }
+
+    /**
+     * Add a recorded environment start of a test class. A test class that recorded more than one start is weighted with the average
+     * startup time, the fingerprint of the last recording wins.
+     */
+    public ShardingPlanner addTiming(@Nonnull final String testClass, @Nonnull final String fingerprint, final long millis)
+    {
+        Preconditions.checkArgument(millis >= 0, "the startup time must not be negative!");
+        fingerprints.put(testClass, fingerprint);
+        startupMillis.put(testClass, (startupMillis.containsKey(testClass) ? startupMillis.get(testClass) : 0L) + millis);
+        startups.put(testClass, (startups.containsKey(testClass) ? startups.get(testClass) : 0) + 1);
+        testClasses.add(testClass);
+        return this;
+    }
+
+    /**
+     * Add a test class that may not have a recording.
+     */
+    public ShardingPlanner addTestClass(@Nonnull final String testClass)
+    {
+        testClasses.add(testClass);
+        return this;
+    }
+
+    /**
+     * Read the timings recorded by the integration test rules. A missing file is fine, all test classes are then spread evenly.
+     */
+    public ShardingPlanner readTimings(@Nonnull final File timingsFile) throws IOException
+    {
+        if (!timingsFile.isFile()) {
+            LOG.warn("No startup timings in %s", timingsFile);
+            return this;
+        }
+
+        for (final String line : Files.readLines(timingsFile, Charsets.UTF_8)) {
+            final List<String> fields = ImmutableList.copyOf(TAB_SPLITTER.split(line));
+            if (fields.size() != 3) {
+                continue;
+            }
+            try {
+                addTiming(fields.get(0), fields.get(1), Long.parseLong(fields.get(2)));
+            }
+            catch (NumberFormatException nfe) {
+                LOG.debug("Skipping garbled timing '%s'", line);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Add all classes in a directory tree that surefire runs by default, i.e. <code>Test*</code>, <code>*Test</code> and <code>*TestCase</code>.
+     */
+    public ShardingPlanner scanTestClasses(@Nonnull final File testClassesDir)
+    {
+        Preconditions.checkArgument(testClassesDir.isDirectory(), "%s is not a directory!", testClassesDir);
+        scanTestClasses(testClassesDir, "");
+        return this;
+    }
+
+    private void scanTestClasses(final File dir, final String packagePrefix)
+    {
+        final File [] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            final String name = file.getName();
+            if (file.isDirectory()) {
+                scanTestClasses(file, packagePrefix + name + ".");
+            }
+            else if (name.endsWith(".class") && name.indexOf('$') < 0) {
+                final String simpleName = name.substring(0, name.length() - ".class".length());
+                if (simpleName.startsWith("Test") || simpleName.endsWith("Test") || simpleName.endsWith("TestCase")) {
+                    testClasses.add(packagePrefix + simpleName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the test classes of every fork.
+     */
+    public List<List<String>> plan(final int forkCount)
+    {
+        Preconditions.checkArgument(forkCount > 0, "at least one fork is needed!");
+
+        // Group the recorded classes by environment.
+        final Map<String, EnvironmentGroup> groups = Maps.newHashMap();
+        final List<String> unrecorded = Lists.newArrayList();
+        for (final String testClass : testClasses) {
+            final String fingerprint = fingerprints.get(testClass);
+            if (fingerprint == null) {
+                unrecorded.add(testClass);
+                continue;
+            }
+            EnvironmentGroup group = groups.get(fingerprint);
+            if (group == null) {
+                group = new EnvironmentGroup(fingerprint);
+                groups.put(fingerprint, group);
+            }
+            group.testClasses.add(testClass);
+            group.startupMillis += startupMillis.get(testClass) / startups.get(testClass);
+        }
+
+        final List<Fork> forks = Lists.newArrayList();
+        for (int i = 0; i < forkCount; i++) {
+            forks.add(new Fork());
+        }
+
+        // Longest processing time first: the most expensive environment goes to the fork with the least work so far.
+        final List<EnvironmentGroup> sortedGroups = Lists.newArrayList(groups.values());
+        Collections.sort(sortedGroups, EnvironmentGroup.LONGEST_FIRST);
+        for (final EnvironmentGroup group : sortedGroups) {
+            final Fork fork = Collections.min(forks, Fork.LEAST_LOADED);
+            fork.testClasses.addAll(group.testClasses);
+            fork.startupMillis += group.startupMillis;
+            LOG.debug("Environment %s (%d ms, %d classes) runs in fork %d", group.fingerprint, group.startupMillis, group.testClasses.size(), forks.indexOf(fork));
+        }
+
+        // Nothing is known about the other classes, so only balance their number.
+        for (final String testClass : unrecorded) {
+            Collections.min(forks, Fork.FEWEST_CLASSES).testClasses.add(testClass);
+        }
+
+        final List<List<String>> result = Lists.newArrayList();
+        for (final Fork fork : forks) {
+            LOG.info("Fork %d: %d ms startup, %d classes", result.size(), fork.startupMillis, fork.testClasses.size());
+            result.add(ImmutableList.copyOf(fork.testClasses));
+        }
+        return result;
+    }
+
+    /**
+     * Appends the startup time of an environment to the timings file. Forks append concurrently, so every record is written at once.
+     */
+    static void recordTiming(final String testClass, final String fingerprint, final long millis)
+    {
+        final File profileDir = getProfileDir();
+        if (!profileDir.isDirectory() && !profileDir.mkdirs()) {
+            LOG.warn("Could not create %s, skipping startup timing", profileDir);
+            return;
+        }
+
+        final byte [] record = (TAB_JOINER.join(testClass, fingerprint, millis) + "\n").getBytes(Charsets.UTF_8);
+        try {
+            final OutputStream out = new FileOutputStream(new File(profileDir, TIMINGS_FILE), true);
+            try {
+                out.write(record);
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException ioe) {
+            LOG.warn(ioe, "Could not record startup timing in %s", profileDir);
+        }
+    }
+
+    private static File getProfileDir()
+    {
+        return new File(System.getProperty(CpuProfiler.PROFILE_DIR_PROPERTY, CpuProfiler.DEFAULT_PROFILE_DIR));
+    }
+
+    private static final class EnvironmentGroup
+    {
+        private static final Comparator<EnvironmentGroup> LONGEST_FIRST = new Comparator<EnvironmentGroup>() {
+            @Override
+            public int compare(final EnvironmentGroup g1, final EnvironmentGroup g2) {
+                final int result = Long.valueOf(g2.startupMillis).compareTo(g1.startupMillis);
+                return result != 0 ? result : g1.fingerprint.compareTo(g2.fingerprint);
+            }
+        };
+
+        private final String fingerprint;
+        private final List<String> testClasses = Lists.newArrayList();
+        private long startupMillis = 0;
+
+        private EnvironmentGroup(final String fingerprint)
+        {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static final class Fork
+    {
+        private static final Comparator<Fork> LEAST_LOADED = new Comparator<Fork>() {
+            @Override
+            public int compare(final Fork f1, final Fork f2) {
+                return Long.valueOf(f1.startupMillis).compareTo(f2.startupMillis);
+            }
+        };
+
+        private static final Comparator<Fork> FEWEST_CLASSES = new Comparator<Fork>() {
+            @Override
+            public int compare(final Fork f1, final Fork f2) {
+                return Integer.valueOf(f1.testClasses.size()).compareTo(f2.testClasses.size());
+            }
+        };
+
+        private final List<String> testClasses = Lists.newArrayList();
+        private long startupMillis = 0;
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the throttling applied to a service by {@link ServiceOptions}.
+ *
+ * @see IntegrationTestRule#getThrottleStats(String)
+ */
+public final class ThrottleStats
+{
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger peakActiveRequests = new AtomicInteger();
+    private final AtomicInteger waitingRequests = new AtomicInteger();
+    private final AtomicLong queuedRequests = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong bandwidthWaitNanos = new AtomicLong();
+
+    ThrottleStats()
+    {
+    }
+
+    /**
+     * Number of requests the service is handling right now.
+     */
+    public int getActiveRequests()
+    {
+        return activeRequests.get();
+    }
+
+    /**
+     * Highest number of requests the service handled at the same time.
+     */
+    public int getPeakActiveRequests()
+    {
+        return peakActiveRequests.get();
+    }
+
+    /**
+     * Number of requests that are waiting in the queue right now.
+     */
+    public int getWaitingRequests()
+    {
+        return waitingRequests.get();
+    }
+
+    /**
+     * Number of requests that had to wait in the queue because the concurrency limit was reached.
+     */
+    public long getQueuedRequests()
+    {
+        return queuedRequests.get();
+    }
+
+    /**
+     * Number of requests that were rejected with 503 because the concurrency limit was reached and the queue was full or timed out.
+     */
+    public long getRejectedRequests()
+    {
+        return rejectedRequests.get();
+    }
+
+    /**
+     * Total time that requests spent in the queue.
+     */
+    public long getQueueWaitTime(final TimeUnit unit)
+    {
+        return unit.convert(queueWaitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Number of response bytes that went through the bandwidth limit.
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Total time that responses were delayed by the bandwidth limit.
+     */
+    public long getBandwidthWaitTime(final TimeUnit unit)
+    {
+        return unit.convert(bandwidthWaitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    void requestStarted()
+    {
+        final int active = activeRequests.incrementAndGet();
+        int peak;
+        while (active > (peak = peakActiveRequests.get()) && !peakActiveRequests.compareAndSet(peak, active)) {
+            // retry
+        }
+    }
+
+    void requestFinished()
+    {
+        activeRequests.decrementAndGet();
+    }
+
+    /**
+     * Returns false if the queue is full.
+     */
+    boolean enterQueue(final int queueSize)
+    {
+        if (waitingRequests.incrementAndGet() > queueSize) {
+            waitingRequests.decrementAndGet();
+            return false;
+        }
+        queuedRequests.incrementAndGet();
+        return true;
+    }
+
+    void leaveQueue(final long waitNanos)
+    {
+        waitingRequests.decrementAndGet();
+        queueWaitNanos.addAndGet(waitNanos);
+    }
+
+    void requestRejected()
+    {
+        rejectedRequests.incrementAndGet();
+    }
+
+    void bytesWritten(final int bytes, final long waitNanos)
+    {
+        bytesWritten.addAndGet(bytes);
+        bandwidthWaitNanos.addAndGet(waitNanos);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ThrottleStats[active=%d, peak=%d, waiting=%d, queued=%d, rejected=%d, queue wait=%d ms, bytes=%d, bandwidth wait=%d ms]",
+                             getActiveRequests(), getPeakActiveRequests(), getWaitingRequests(), getQueuedRequests(), getRejectedRequests(),
+                             getQueueWaitTime(TimeUnit.MILLISECONDS), getBytesWritten(), getBandwidthWaitTime(TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.inject.Module;
+import com.google.inject.servlet.ServletModule;
+
+/**
+ * Applies the concurrency and bandwidth limits of {@link ServiceOptions} to all requests of a service.
+ */
+final class ThrottlingFilter implements Filter
+{
+    private final ServiceOptions options;
+    private final ThrottleStats stats;
+    private final Semaphore slots;
+    private final RateLimiter rateLimiter;
+
+    private ThrottlingFilter(final ServiceOptions options, final ThrottleStats stats)
+    {
+        this.options = options;
+        this.stats = stats;
+        this.slots = options.getMaxConcurrentRequests() > 0 ? new Semaphore(options.getMaxConcurrentRequests(), true) : null;
+        this.rateLimiter = options.getBandwidthLimit() > 0 ? RateLimiter.create(options.getBandwidthLimit()) : null;
+    }
+
+    /**
+     * Returns a module that installs the filter in front of all resources of the service.
+     */
+    static Module getModule(final ServiceOptions options, final ThrottleStats stats)
+    {
+        return new ServletModule() {
+            @Override
+            protected void configureServlets() {
+                filter("/*").through(new ThrottlingFilter(options, stats));
+            }
+        };
+    }
+
+    @Override
+    public void init(final FilterConfig filterConfig)
+    {
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException, ServletException
+    {
+        if (!acquireSlot()) {
+            stats.requestRejected();
+            ((HttpServletResponse) response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Concurrency limit reached");
+            return;
+        }
+
+        stats.requestStarted();
+        try {
+            if (rateLimiter == null) {
+                chain.doFilter(request, response);
+            }
+            else {
+                final ThrottledResponse throttledResponse = new ThrottledResponse((HttpServletResponse) response);
+                chain.doFilter(request, throttledResponse);
+                throttledResponse.flushWriter();
+            }
+        }
+        finally {
+            stats.requestFinished();
+            if (slots != null) {
+                slots.release();
+            }
+        }
+    }
+
+    private boolean acquireSlot() throws ServletException
+    {
+        if (slots == null || slots.tryAcquire()) {
+            return true;
+        }
+
+        if (!stats.enterQueue(options.getRequestQueueSize())) {
+            return false;
+        }
+
+        final long startNanos = System.nanoTime();
+        try {
+            return slots.tryAcquire(options.getRequestQueueTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new ServletException(ie);
+        }
+        finally {
+            stats.leaveQueue(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void acquireBandwidth(final int bytes)
+    {
+        if (bytes > 0) {
+            final long startNanos = System.nanoTime();
+            rateLimiter.acquire(bytes);
+            stats.bytesWritten(bytes, System.nanoTime() - startNanos);
+        }
+    }
+
+    private class ThrottledResponse extends HttpServletResponseWrapper
+    {
+        private ServletOutputStream outputStream = null;
+        private PrintWriter writer = null;
+
+        ThrottledResponse(final HttpServletResponse response)
+        {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException
+        {
+            if (outputStream == null) {
+                final ServletOutputStream delegate = super.getOutputStream();
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(final int b) throws IOException {
+                        acquireBandwidth(1);
+                        delegate.write(b);
+                    }
+
+                    @Override
+                    public void write(final byte [] b, final int off, final int len) throws IOException {
+                        acquireBandwidth(len);
+                        delegate.write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        delegate.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        delegate.close();
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException
+        {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException
+        {
+            flushWriter();
+            super.flushBuffer();
+        }
+
+        void flushWriter()
+        {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A migration or seed step for a {@link TemplateDatabase}. Steps are applied once to the template database; all clones get
+ * the result.
+ */
+public interface DatabaseSetup
+{
+    /**
+     * Returns a string that changes whenever the result of {@link #apply(Connection)} changes, e.g. a version number or a hash
+     * of the migration scripts. Template databases are reused as long as the fingerprints of all their steps stay the same.
+     */
+    String getFingerprint();
+
+    /**
+     * Applies the step to the template database.
+     */
+    void apply(Connection connection) throws SQLException;
+}
@@ -0,0 +1,321 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Creates executors whose work the test can wait for. Every integration test rule has its own tracker, which is bound in all service
+ * and test case injectors. Services get tracked executors either from {@link TrackedExecutorModule} or by asking the tracker directly.
+ *
+ * The environment is quiescent when no tracked executor runs or queues a task. Delayed tasks count until they have run, periodic
+ * tasks only while they are due. A task that submits more work to another tracked executor keeps the environment busy until that work is done.
+ *
+ * Every injector is bound to a view from {@link #forInjector(String)}, which sees all executors but records the injector as the owner
+ * of the executors it creates. The executors of a service instance are stopped with the instance.
+ */
+public final class ExecutorTracker
+{
+    /** Time between two checks while waiting. Scheduled tasks fall due without any notification. */
+    private static final long POLL_MILLIS = 10;
+
+    private final List<TrackedExecutor> executors;
+
+    private final Object lock;
+
+    private final String injectorName;
+
+    private interface TrackedExecutor
+    {
+        String getName();
+
+        /** The injector that created the executor or null. */
+        String getInjectorName();
+
+        /** Number of tasks that are running or pending, except for periodic tasks that are not due. */
+        int getBusyTasks();
+
+        List<Runnable> shutdownNow();
+    }
+
+    public ExecutorTracker()
+    {
+        this(new CopyOnWriteArrayList<TrackedExecutor>(), new Object(), null);
+    }
+
+    private ExecutorTracker(final List<TrackedExecutor> executors, final Object lock, final String injectorName)
+    {
+        this.executors = executors;
+        this.lock = lock;
+        this.injectorName = injectorName;
+    }
+
+    /**
+     * Returns a tracker that shares all executors with this one. The executors that it creates belong to the given injector.
+     */
+    public ExecutorTracker forInjector(@Nonnull final String injectorName)
+    {
+        Preconditions.checkNotNull(injectorName, "the injector name must not be null!");
+        return new ExecutorTracker(executors, lock, injectorName);
+    }
+
+    /**
+     * Creates a fixed size thread pool.
+     */
+    public ExecutorService newExecutor(@Nonnull final String name, final int threads)
+    {
+        Preconditions.checkArgument(threads > 0, "the number of threads must be positive!");
+        final TrackedThreadPoolExecutor executor = new TrackedThreadPoolExecutor(name, injectorName, threads);
+        executors.add(executor);
+        return executor;
+    }
+
+    /**
+     * Creates a scheduled thread pool.
+     */
+    public ScheduledExecutorService newScheduledExecutor(@Nonnull final String name, final int threads)
+    {
+        Preconditions.checkArgument(threads > 0, "the number of threads must be positive!");
+        final TrackedScheduledExecutor executor = new TrackedScheduledExecutor(name, injectorName, threads);
+        executors.add(executor);
+        return executor;
+    }
+
+    /**
+     * Returns true if no tracked executor has work to do right now.
+     */
+    public boolean isQuiescent()
+    {
+        return getBusyExecutors().isEmpty();
+    }
+
+    /**
+     * Returns the number of running or pending tasks for every executor that is busy.
+     */
+    public Map<String, Integer> getBusyExecutors()
+    {
+        final Map<String, Integer> busyExecutors = Maps.newTreeMap();
+        for (final TrackedExecutor executor : executors) {
+            final int busyTasks = executor.getBusyTasks();
+            if (busyTasks > 0) {
+                busyExecutors.put(executor.getName(), busyTasks);
+            }
+        }
+        return busyExecutors;
+    }
+
+    /**
+     * Waits until the environment is quiescent. A scheduled executor hands a task from its queue to a worker without a moment in
+     * which either side shows it, so the environment must look quiescent twice in a row.
+     *
+     * @return true if the environment is quiescent, false if the timeout expired.
+     */
+    public boolean awaitQuiescence(final long timeout, @Nonnull final TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean quiescent = false;
+        synchronized (lock) {
+            while (true) {
+                if (isQuiescent()) {
+                    if (quiescent) {
+                        return true;
+                    }
+                    quiescent = true;
+                }
+                else {
+                    quiescent = false;
+                }
+
+                final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                lock.wait(Math.min(remainingMillis, POLL_MILLIS));
+            }
+        }
+    }
+
+    /**
+     * Stops all tracked executors, called when the rule shuts down the environment.
+     */
+    public void shutdown()
+    {
+        for (final TrackedExecutor executor : executors) {
+            executor.shutdownNow();
+        }
+        executors.clear();
+    }
+
+    /**
+     * Stops the executors of a single injector, called when the rule stops a service instance.
+     */
+    public void shutdown(@Nonnull final String injectorName)
+    {
+        for (final TrackedExecutor executor : executors) {
+            if (injectorName.equals(executor.getInjectorName())) {
+                executor.shutdownNow();
+                executors.remove(executor);
+            }
+        }
+        notifyWaiters();
+    }
+
+    private void notifyWaiters()
+    {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(final String name)
+    {
+        return new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build();
+    }
+
+    private final class TrackedThreadPoolExecutor extends ThreadPoolExecutor implements TrackedExecutor
+    {
+        private final String name;
+        private final String injectorName;
+
+        /** Counted from submission, so a task is never lost between the queue and a worker. */
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private TrackedThreadPoolExecutor(final String name, final String injectorName, final int threads)
+        {
+            super(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), newThreadFactory(name));
+            this.name = name;
+            this.injectorName = injectorName;
+        }
+
+        @Override
+        public String getName()
+        {
+            return name;
+        }
+
+        @Override
+        public String getInjectorName()
+        {
+            return injectorName;
+        }
+
+        @Override
+        public int getBusyTasks()
+        {
+            return outstanding.get();
+        }
+
+        @Override
+        public void execute(final Runnable command)
+        {
+            outstanding.incrementAndGet();
+            try {
+                super.execute(command);
+            }
+            catch (RejectedExecutionException ree) {
+                outstanding.decrementAndGet();
+                throw ree;
+            }
+        }
+
+        @Override
+        protected void afterExecute(final Runnable r, final Throwable t)
+        {
+            outstanding.decrementAndGet();
+            notifyWaiters();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            final List<Runnable> pending = super.shutdownNow();
+            outstanding.addAndGet(-pending.size());
+            return pending;
+        }
+    }
+
+    private final class TrackedScheduledExecutor extends ScheduledThreadPoolExecutor implements TrackedExecutor
+    {
+        private final String name;
+        private final String injectorName;
+        private final AtomicInteger running = new AtomicInteger();
+
+        private TrackedScheduledExecutor(final String name, final String injectorName, final int threads)
+        {
+            super(threads, newThreadFactory(name));
+            this.name = name;
+            this.injectorName = injectorName;
+        }
+
+        @Override
+        public String getName()
+        {
+            return name;
+        }
+
+        @Override
+        public String getInjectorName()
+        {
+            return injectorName;
+        }
+
+        @Override
+        public int getBusyTasks()
+        {
+            int busyTasks = running.get();
+            final BlockingQueue<Runnable> queue = getQueue();
+            for (final Runnable task : queue) {
+                // Periodic tasks never finish, they only count while they are due.
+                if (!(task instanceof RunnableScheduledFuture) || !((RunnableScheduledFuture<?>) task).isPeriodic() || ((RunnableScheduledFuture<?>) task).getDelay(TimeUnit.NANOSECONDS) <= 0) {
+                    busyTasks++;
+                }
+            }
+            return busyTasks;
+        }
+
+        @Override
+        protected void beforeExecute(final Thread t, final Runnable r)
+        {
+            running.incrementAndGet();
+        }
+
+        @Override
+        protected void afterExecute(final Runnable r, final Throwable t)
+        {
+            running.decrementAndGet();
+            notifyWaiters();
+        }
+    }
+}
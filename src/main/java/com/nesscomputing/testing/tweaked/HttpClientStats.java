@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Live statistics of the http client of the test case. Every integration test rule has its own statistics.
+ *
+ * The client does not expose its connection pool, so all numbers are counted per request and none of them is a pool
+ * statistic. The requests in flight are an upper bound for the leased connections. A request that is submitted while as
+ * many requests to the same host are in flight as the pool allows per route is counted as an estimated waiting request.
+ * Idle connections, the time spent waiting for a connection and the rate of new connections are not visible from outside
+ * the pool and are not reported.
+ */
+public final class HttpClientStats
+{
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong estimatedWaitingRequests = new AtomicLong();
+    private final AtomicLong abandonedRequests = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final ConcurrentMap<String, AtomicInteger> inFlightPerRoute = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private volatile long resetNanos = System.nanoTime();
+    private volatile int maxConnectionsPerRoute = Integer.MAX_VALUE;
+
+    void setMaxConnectionsPerRoute(final int maxConnectionsPerRoute)
+    {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * Number of requests in flight.
+     */
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    /**
+     * Highest number of requests in flight at the same time.
+     */
+    public int getPeakInFlight()
+    {
+        return peakInFlight.get();
+    }
+
+    /**
+     * Number of requests in flight per host.
+     */
+    public ImmutableMap<String, Integer> getInFlightPerRoute()
+    {
+        final ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+        for (final Map.Entry<String, AtomicInteger> entry : new TreeMap<String, AtomicInteger>(inFlightPerRoute).entrySet()) {
+            builder.put(entry.getKey(), entry.getValue().get());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Number of requests submitted.
+     */
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Estimated number of requests that had to wait for a connection: the requests that were submitted while the per route limit
+     * was reached. A request that is counted here may still get a connection that was released in the meantime.
+     */
+    public long getEstimatedWaitingRequests()
+    {
+        return estimatedWaitingRequests.get();
+    }
+
+    /**
+     * Number of requests that failed without a response.
+     */
+    public long getAbandonedRequests()
+    {
+        return abandonedRequests.get();
+    }
+
+    /**
+     * Submitted requests per second since the statistics were created or reset.
+     */
+    public double getRequestsPerSecond()
+    {
+        final long elapsedNanos = System.nanoTime() - resetNanos;
+        return elapsedNanos <= 0 ? 0.0 : requests.get() * 1.0e9 / elapsedNanos;
+    }
+
+    /**
+     * Mean time from submitting a request to receiving the response. Includes the time spent waiting for a connection.
+     */
+    public long getMeanResponseTime(final TimeUnit unit)
+    {
+        final long completed = requests.get() - inFlight.get() - abandonedRequests.get();
+        return completed <= 0 ? 0 : unit.convert(totalNanos.get() / completed, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxResponseTime(final TimeUnit unit)
+    {
+        return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Resets all counters except the requests that are in flight.
+     */
+    public void reset()
+    {
+        peakInFlight.set(inFlight.get());
+        requests.set(inFlight.get());
+        estimatedWaitingRequests.set(0);
+        abandonedRequests.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+        resetNanos = System.nanoTime();
+    }
+
+    void requestSubmitted(final String route)
+    {
+        requests.incrementAndGet();
+
+        final int current = inFlight.incrementAndGet();
+        int peak;
+        while (current > (peak = peakInFlight.get()) && !peakInFlight.compareAndSet(peak, current)) {
+            // retry
+        }
+
+        AtomicInteger routeInFlight = inFlightPerRoute.get(route);
+        if (routeInFlight == null) {
+            final AtomicInteger newRouteInFlight = new AtomicInteger();
+            routeInFlight = inFlightPerRoute.putIfAbsent(route, newRouteInFlight);
+            if (routeInFlight == null) {
+                routeInFlight = newRouteInFlight;
+            }
+        }
+        if (routeInFlight.incrementAndGet() > maxConnectionsPerRoute) {
+            estimatedWaitingRequests.incrementAndGet();
+        }
+    }
+
+    void requestCompleted(final String route, final long durationNanos)
+    {
+        release(route);
+        totalNanos.addAndGet(durationNanos);
+        long max;
+        while (durationNanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, durationNanos)) {
+            // retry
+        }
+    }
+
+    void requestAbandoned(final String route)
+    {
+        release(route);
+        abandonedRequests.incrementAndGet();
+    }
+
+    private void release(final String route)
+    {
+        inFlight.decrementAndGet();
+        final AtomicInteger routeInFlight = inFlightPerRoute.get(route);
+        if (routeInFlight != null) {
+            routeInFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("HttpClientStats[in flight=%d, peak=%d, requests=%d, estimated waiting=%d, abandoned=%d, %.1f req/s, mean=%d ms, max=%d ms]",
+                             getInFlight(), getPeakInFlight(), getRequests(), getEstimatedWaitingRequests(), getAbandonedRequests(), getRequestsPerSecond(),
+                             getMeanResponseTime(TimeUnit.MILLISECONDS), getMaxResponseTime(TimeUnit.MILLISECONDS));
+    }
+}
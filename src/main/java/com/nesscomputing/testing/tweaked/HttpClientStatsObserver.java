@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.io.IOException;
+
+import com.google.inject.Binder;
+import com.google.inject.Inject;
+
+import com.nesscomputing.config.Config;
+import com.nesscomputing.httpclient.HttpClientObserver;
+import com.nesscomputing.httpclient.HttpClientObserverGroup;
+import com.nesscomputing.httpclient.HttpClientRequest;
+import com.nesscomputing.httpclient.HttpClientResponse;
+import com.nesscomputing.httpclient.guice.HttpClientModule;
+import com.nesscomputing.testing.HttpClientPoolOptions;
+
+/**
+ * Counts the requests of the test case http client into the {@link HttpClientStats} of the rule. Request and response are
+ * observed on the calling thread. Every observer tracks its own requests, so that a request of one rule is never counted
+ * against the statistics of another.
+ */
+class HttpClientStatsObserver extends HttpClientObserver
+{
+    private final ThreadLocal<Request> currentRequest = new ThreadLocal<Request>();
+
+    private final HttpClientStats stats;
+
+    @Inject
+    HttpClientStatsObserver(final HttpClientStats stats, final Config config)
+    {
+        this.stats = stats;
+        stats.setMaxConnectionsPerRoute(config.getConfiguration().getInt(HttpClientPoolOptions.MAX_PER_ROUTE_KEY, Integer.MAX_VALUE));
+    }
+
+    static void bind(final Binder binder)
+    {
+        HttpClientModule.bindNewObserver(binder, HttpClientObserverGroup.PLATFORM_INTERNAL).to(HttpClientStatsObserver.class);
+    }
+
+    @Override
+    public <RequestType> HttpClientRequest<RequestType> onRequestSubmitted(final HttpClientRequest<RequestType> request) throws IOException
+    {
+        final Request abandoned = currentRequest.get();
+        if (abandoned != null) {
+            currentRequest.remove();
+            stats.requestAbandoned(abandoned.route);
+        }
+
+        final String route = String.valueOf(request.getUri().getAuthority());
+        currentRequest.set(new Request(route));
+        stats.requestSubmitted(route);
+        return request;
+    }
+
+    @Override
+    public HttpClientResponse onResponseReceived(final HttpClientResponse response) throws IOException
+    {
+        final Request request = currentRequest.get();
+        if (request != null) {
+            currentRequest.remove();
+            stats.requestCompleted(request.route, System.nanoTime() - request.startNanos);
+        }
+        return response;
+    }
+
+    private static final class Request
+    {
+        private final String route;
+        private final long startNanos = System.nanoTime();
+
+        private Request(final String route)
+        {
+            this.route = route;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import com.google.inject.AbstractModule;
+
+import com.nesscomputing.httpclient.HttpClientObserverGroup;
+import com.nesscomputing.httpclient.guice.HttpClientModule;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Resolves <code>srvc://</code> URIs for all platform internal http clients through the {@link InMemoryServiceRegistry} of the
+ * test environment. The registry itself is bound by the integration test rule.
+ */
+public class InMemoryDiscoveryModule extends AbstractModule
+{
+    private static final Log LOG = Log.findLog();
+
+    @Override
+    protected void configure()
+    {
+        try {
+            HttpClientModule.bindNewObserver(binder(), HttpClientObserverGroup.PLATFORM_INTERNAL).to(InMemoryDiscoveryObserver.class);
+        }
+        catch (NoClassDefFoundError ncdfe) {
+            LOG.infoDebug(ncdfe, "Could not bind in-memory discovery observer, ness-httpclient is not available");
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.io.IOException;
+import java.net.URI;
+
+import com.google.inject.Inject;
+
+import com.nesscomputing.httpclient.HttpClientObserver;
+import com.nesscomputing.httpclient.HttpClientRequest;
+
+/**
+ * Rewrites <code>srvc://</code> URIs to the URIs registered in the {@link InMemoryServiceRegistry} of the test environment.
+ * Written as a separate class so that ness-httpclient can be optional.
+ */
+class InMemoryDiscoveryObserver extends HttpClientObserver
+{
+    private final InMemoryServiceRegistry registry;
+
+    @Inject
+    InMemoryDiscoveryObserver(final InMemoryServiceRegistry registry)
+    {
+        this.registry = registry;
+    }
+
+    @Override
+    public <RequestType> HttpClientRequest<RequestType> onRequestSubmitted(final HttpClientRequest<RequestType> request) throws IOException
+    {
+        final URI uri = request.getUri();
+        if (!InMemoryServiceRegistry.SERVICE_SCHEME.equals(uri.getScheme())) {
+            return request;
+        }
+
+        final URI resolvedUri = registry.resolve(uri);
+        if (resolvedUri == null) {
+            throw new IOException(String.format("No service registered for '%s'!", uri));
+        }
+
+        return HttpClientRequest.Builder.fromRequest(request).setUrl(resolvedUri).request();
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Service discovery stand-in that lives inside the test JVM. Every integration test rule has its own registry, so announcements
+ * never leak between test environments. The rule announces every service synchronously when it has started.
+ *
+ * Lookups read an immutable snapshot and never lock. Changes replace the snapshot with compare-and-set. If a service has
+ * more than one URI, e.g. because it runs with replicas, {@link #resolve(URI)} spreads the requests according to the
+ * {@link LoadBalancingStrategy} of the service.
+ */
+public final class InMemoryServiceRegistry
+{
+    /** URI scheme that is resolved through the registry. */
+    public static final String SERVICE_SCHEME = "srvc";
+
+    private static final Log LOG = Log.findLog();
+
+    private final AtomicReference<ImmutableMap<String, ImmutableList<URI>>> registrations = new AtomicReference<ImmutableMap<String, ImmutableList<URI>>>(ImmutableMap.<String, ImmutableList<URI>>of());
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private final Object announcementLock = new Object();
+
+    private final ConcurrentMap<String, LoadBalancingStrategy> strategies = new ConcurrentHashMap<String, LoadBalancingStrategy>();
+    private final ConcurrentMap<String, AtomicInteger> counters = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Receives all changes to the registry.
+     */
+    public interface Listener
+    {
+        void onAnnounce(String serviceName, URI serviceUri);
+
+        void onUnannounce(String serviceName, URI serviceUri);
+    }
+
+    /**
+     * Register a service URI under a name.
+     */
+    public void announce(@Nonnull final String serviceName, @Nonnull final URI serviceUri)
+    {
+        Preconditions.checkNotNull(serviceName, "the service name must not be null!");
+        Preconditions.checkNotNull(serviceUri, "the service URI must not be null!");
+
+        ImmutableMap<String, ImmutableList<URI>> current;
+        ImmutableMap<String, ImmutableList<URI>> updated;
+        do {
+            current = registrations.get();
+            final List<URI> uris = current.containsKey(serviceName) ? Lists.newArrayList(current.get(serviceName)) : Lists.<URI>newArrayList();
+            if (uris.contains(serviceUri)) {
+                return;
+            }
+            uris.add(serviceUri);
+            updated = replace(current, serviceName, uris);
+        } while (!registrations.compareAndSet(current, updated));
+
+        LOG.debug("Announced %s as '%s'", serviceUri, serviceName);
+        for (final Listener listener : listeners) {
+            listener.onAnnounce(serviceName, serviceUri);
+        }
+        notifyWaiters();
+    }
+
+    /**
+     * Remove a service URI.
+     */
+    public void unannounce(@Nonnull final String serviceName, @Nonnull final URI serviceUri)
+    {
+        ImmutableMap<String, ImmutableList<URI>> current;
+        ImmutableMap<String, ImmutableList<URI>> updated;
+        do {
+            current = registrations.get();
+            if (!current.containsKey(serviceName) || !current.get(serviceName).contains(serviceUri)) {
+                return;
+            }
+            final List<URI> uris = Lists.newArrayList(current.get(serviceName));
+            uris.remove(serviceUri);
+            updated = replace(current, serviceName, uris);
+        } while (!registrations.compareAndSet(current, updated));
+
+        LOG.debug("Unannounced %s as '%s'", serviceUri, serviceName);
+        for (final Listener listener : listeners) {
+            listener.onUnannounce(serviceName, serviceUri);
+        }
+        notifyWaiters();
+    }
+
+    /**
+     * Remove all URIs of a service.
+     */
+    public void unannounceAll(@Nonnull final String serviceName)
+    {
+        for (final URI serviceUri : lookup(serviceName)) {
+            unannounce(serviceName, serviceUri);
+        }
+    }
+
+    /**
+     * Returns all URIs registered for a service. Never locks.
+     */
+    public List<URI> lookup(@Nonnull final String serviceName)
+    {
+        final List<URI> uris = registrations.get().get(serviceName);
+        return uris == null ? ImmutableList.<URI>of() : uris;
+    }
+
+    /**
+     * Returns a snapshot of all registrations.
+     */
+    public Map<String, List<URI>> getRegistrations()
+    {
+        return ImmutableMap.<String, List<URI>>copyOf(registrations.get());
+    }
+
+    /**
+     * Resolves a <code>srvc://&lt;service name&gt;/path</code> URI into the URI of a registered service. Returns null if the URI does not use the
+     * srvc scheme or the service is not registered.
+     */
+    @CheckForNull
+    public URI resolve(@Nonnull final URI uri)
+    {
+        if (!SERVICE_SCHEME.equals(uri.getScheme())) {
+            return null;
+        }
+
+        final URI serviceUri = choose(uri.getAuthority());
+        if (serviceUri == null) {
+            return null;
+        }
+
+        try {
+            return new URI(serviceUri.getScheme(), null, serviceUri.getHost(), serviceUri.getPort(), uri.getPath(), uri.getQuery(), uri.getFragment());
+        }
+        catch (URISyntaxException use) {
+            throw new IllegalArgumentException(use);
+        }
+    }
+
+    /**
+     * Set the strategy that chooses between the URIs of a service. The default is {@link LoadBalancingStrategy#ROUND_ROBIN}.
+     */
+    public void setLoadBalancing(@Nonnull final String serviceName, @Nonnull final LoadBalancingStrategy strategy)
+    {
+        Preconditions.checkNotNull(strategy, "the strategy must not be null!");
+        strategies.put(serviceName, strategy);
+    }
+
+    public LoadBalancingStrategy getLoadBalancing(@Nonnull final String serviceName)
+    {
+        final LoadBalancingStrategy strategy = strategies.get(serviceName);
+        return strategy == null ? LoadBalancingStrategy.ROUND_ROBIN : strategy;
+    }
+
+    public void addListener(@Nonnull final Listener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeListener(@Nonnull final Listener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Waits until at least one URI is registered for a service.
+     *
+     * @return true if the service is registered, false if the timeout expired.
+     */
+    public boolean awaitRegistration(@Nonnull final String serviceName, final long timeout, @Nonnull final TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (announcementLock) {
+            while (lookup(serviceName).isEmpty()) {
+                final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                announcementLock.wait(remainingMillis);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Chooses one of the URIs registered for the authority of a srvc URI. The authority is either the service name or the service name and the
+     * service type, separated by a colon.
+     */
+    @CheckForNull
+    URI choose(final String authority)
+    {
+        if (authority == null) {
+            return null;
+        }
+
+        String serviceName = authority;
+        List<URI> uris = lookup(serviceName);
+        if (uris.isEmpty() && authority.indexOf(':') >= 0) {
+            serviceName = authority.substring(0, authority.indexOf(':'));
+            uris = lookup(serviceName);
+        }
+
+        if (uris.isEmpty()) {
+            return null;
+        }
+        if (uris.size() == 1) {
+            return uris.get(0);
+        }
+
+        AtomicInteger counter = counters.get(serviceName);
+        if (counter == null) {
+            final AtomicInteger newCounter = new AtomicInteger();
+            counter = counters.putIfAbsent(serviceName, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return uris.get(getLoadBalancing(serviceName).choose(uris.size(), counter));
+    }
+
+    private void notifyWaiters()
+    {
+        synchronized (announcementLock) {
+            announcementLock.notifyAll();
+        }
+    }
+
+    private static ImmutableMap<String, ImmutableList<URI>> replace(final Map<String, ImmutableList<URI>> current, final String serviceName, final List<URI> uris)
+    {
+        final Map<String, ImmutableList<URI>> updated = Maps.newHashMap(current);
+        if (uris.isEmpty()) {
+            updated.remove(serviceName);
+        }
+        else {
+            updated.put(serviceName, ImmutableList.copyOf(uris));
+        }
+        return ImmutableMap.copyOf(updated);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "InMemoryServiceRegistry" + registrations.get();
+    }
+}
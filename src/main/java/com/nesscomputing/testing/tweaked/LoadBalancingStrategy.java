@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses one of the URIs registered for a service in the {@link InMemoryServiceRegistry}.
+ */
+public enum LoadBalancingStrategy
+{
+    /** Always the first registered URI. */
+    FIRST {
+        @Override
+        int choose(final int count, final AtomicInteger counter) {
+            return 0;
+        }
+    },
+
+    /** All URIs in turn. */
+    ROUND_ROBIN {
+        @Override
+        int choose(final int count, final AtomicInteger counter) {
+            return (counter.getAndIncrement() & Integer.MAX_VALUE) % count;
+        }
+    },
+
+    /** A random URI for every request. */
+    RANDOM {
+        @Override
+        int choose(final int count, final AtomicInteger counter) {
+            return ThreadLocalRandom.current().nextInt(count);
+        }
+    },
+
+    /** The same URI for all requests from the same thread, as long as the number of URIs does not change. */
+    STICKY {
+        @Override
+        int choose(final int count, final AtomicInteger counter) {
+            final long threadId = Thread.currentThread().getId();
+            return (int) ((threadId ^ (threadId >>> 32)) & Integer.MAX_VALUE) % count;
+        }
+    };
+
+    /**
+     * Returns the index of the chosen URI.
+     *
+     * @param count the number of registered URIs, always positive.
+     * @param counter a counter that is kept per service.
+     */
+    abstract int choose(int count, AtomicInteger counter);
+}
@@ -15,6 +15,10 @@
  */
 package com.nesscomputing.testing.tweaked;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import com.google.common.base.Throwables;
@@ -66,17 +70,17 @@ final class ModuleProvider
         }
 
         try {
-            if (this.moduleClass == null) {
-                this.moduleClass = Class.forName(moduleClassName);
-            }
+            // Modules given by name are resolved on every call and never cached. The providers of the built-in tweaks are static, an isolated
+            // service must still get the class from its own class loader, and the provider must not keep that class loader alive.
+            final Class<?> clazz = (moduleClass != null) ? moduleClass : loadClass(moduleClassName);
 
             try {
                 // try the <module>(Config) c'tor first.
-                return Module.class.cast(moduleClass.getConstructor(Config.class).newInstance(config));
+                return Module.class.cast(clazz.getConstructor(Config.class).newInstance(config));
             }
             catch (NoSuchMethodException nsme) {
                 // now try a no-args c"tor.
-                return Module.class.cast(moduleClass.getConstructor().newInstance());
+                return Module.class.cast(clazz.getConstructor().newInstance());
             }
         }
         catch (Exception e) {
@@ -84,13 +88,60 @@ final class ModuleProvider
         }
     }
 
+    /**
+     * Returns the name of the module class if the module can be recreated from that name, otherwise null. A module instance can not be
+     * recreated, a new instance from its class would lose whatever state the instance was created with.
+     */
+    @CheckForNull
+    String getModuleClassName()
+    {
+        if (moduleClassName != null) {
+            return moduleClassName;
+        }
+        if (moduleClass != null && isInstantiable(moduleClass)) {
+            return moduleClass.getName();
+        }
+        return null;
+    }
+
+    /**
+     * Loads a class through the context class loader of the current thread, so that a service with a class loader of its own
+     * gets its own module classes.
+     */
+    static Class<?> loadClass(final String className) throws ClassNotFoundException
+    {
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        return Class.forName(className, true, contextClassLoader != null ? contextClassLoader : ModuleProvider.class.getClassLoader());
+    }
+
+    /**
+     * Returns true if the class is public, not an inner class and has a public no-args c'tor or a public c'tor that takes a config object.
+     */
+    static boolean isInstantiable(final Class<?> clazz)
+    {
+        if (!Modifier.isPublic(clazz.getModifiers())
+            || clazz.isAnonymousClass()
+            || clazz.isLocalClass()
+            || (clazz.isMemberClass() && !Modifier.isStatic(clazz.getModifiers()))) {
+            return false;
+        }
+
+        for (final Constructor<?> c : clazz.getConstructors()) {
+            final Class<?> [] parameterTypes = c.getParameterTypes();
+            if (parameterTypes.length == 0 || (parameterTypes.length == 1 && parameterTypes[0] == Config.class)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public Module getSafeModule(@Nonnull final Config config)
     {
         try {
             return getModule(config);
         }
         catch (Exception e) {
-            LOG.infoDebug(e, "Could not find '%s'; using empty module!", moduleClass);
+            LOG.infoDebug(e, "Could not find '%s'; using empty module!", moduleClass != null ? moduleClass : moduleClassName);
             return Modules.EMPTY_MODULE;
         }
     }
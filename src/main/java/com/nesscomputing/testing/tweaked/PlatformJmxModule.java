@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import javax.management.MBeanServer;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Scopes;
+import com.google.inject.name.Named;
+
+import org.weakref.jmx.MBeanExporter;
+import org.weakref.jmx.guice.MBeanModule;
+
+/**
+ * Binds an MBean server that exports all beans of the injector to the platform MBean server, in domains prefixed with the
+ * name of the service.
+ *
+ * @see PlatformMBeanServers
+ */
+public class PlatformJmxModule extends AbstractModule
+{
+    @Override
+    protected void configure()
+    {
+        install (new MBeanModule());
+        bind (MBeanServer.class).toProvider(PrefixedMBeanServerProvider.class).in(Scopes.SINGLETON);
+        bind (MBeanExporter.class).in(Scopes.SINGLETON);
+    }
+
+    static class PrefixedMBeanServerProvider implements Provider<MBeanServer>
+    {
+        private final PlatformMBeanServers platformMBeanServers;
+
+        private String serviceName = TweakedModule.TEST_CASE_NAME;
+        private String injectorName = null;
+
+        @Inject
+        PrefixedMBeanServerProvider(final PlatformMBeanServers platformMBeanServers)
+        {
+            this.platformMBeanServers = platformMBeanServers;
+        }
+
+        @Inject(optional=true)
+        void setServiceName(@Named("SERVICE") final String serviceName)
+        {
+            this.serviceName = serviceName;
+        }
+
+        @Inject(optional=true)
+        void setInjectorName(@Named(PlatformMBeanServers.INJECTOR_NAME) final String injectorName)
+        {
+            this.injectorName = injectorName;
+        }
+
+        @Override
+        public MBeanServer get()
+        {
+            // Replicas share the service name, but not the injector name.
+            return platformMBeanServers.forPrefix(injectorName == null ? serviceName : injectorName);
+        }
+    }
+}
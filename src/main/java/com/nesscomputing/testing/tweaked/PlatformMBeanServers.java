@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Gives every injector of an integration test rule a view of the platform MBean server in which all its MBeans live in domains
+ * prefixed with the name of the service, e.g. <code>frontend.com.example:name=Cache</code>. This keeps the beans of several
+ * services apart and a JMX console attached to the test JVM shows them while the test runs. Every rule has its own instance,
+ * which unregisters the beans of an injector when its service instance stops, and all beans when the environment stops.
+ *
+ * MBeans that choose their own name in <code>preRegister()</code> are registered under that name, without the prefix.
+ *
+ * @see TweakedModules#getPlatformJmxModule()
+ */
+public final class PlatformMBeanServers
+{
+    /** Name of the injector, bound by the rule. The service name plus the replica number for additional replicas. */
+    public static final String INJECTOR_NAME = "ness.testing.injector-name";
+
+    private static final Log LOG = Log.findLog();
+
+    private static final String HARNESS = "";
+
+    private final MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    /** Registered names by the name passed to {@link #forPrefix(String)}, the beans of the harness are kept under the empty name. */
+    private final ConcurrentMap<String, Set<ObjectName>> registeredNames = Maps.newConcurrentMap();
+
+    /**
+     * Returns an MBean server that puts all MBeans into domains prefixed with the given name. Queries only see those MBeans.
+     */
+    public MBeanServer forPrefix(@Nonnull final String name)
+    {
+        Preconditions.checkArgument(!name.isEmpty(), "the name must not be empty!");
+        final String prefix = name.replaceAll("[^A-Za-z0-9_-]", "_") + ".";
+        return MBeanServer.class.cast(Proxy.newProxyInstance(MBeanServer.class.getClassLoader(),
+                                                             new Class<?>[] { MBeanServer.class },
+                                                             new PrefixingHandler(prefix, getRegisteredNames(name))));
+    }
+
+    /**
+     * Returns the platform MBean server itself, e.g. for beans of the harness.
+     */
+    public MBeanServer getPlatformMBeanServer()
+    {
+        return platformMBeanServer;
+    }
+
+    /**
+     * Registers a bean of the harness in the platform MBean server. It is unregistered with all other beans.
+     */
+    public void register(@Nonnull final Object bean, @Nonnull final ObjectName name)
+    {
+        try {
+            getRegisteredNames(HARNESS).add(platformMBeanServer.registerMBean(bean, name).getObjectName());
+        }
+        catch (Exception e) {
+            LOG.warn(e, "Could not register %s", name);
+        }
+    }
+
+    /**
+     * Unregisters all MBeans that were registered through the MBean server for the given name, e.g. when a service instance stops, so
+     * that a new instance under the same name can register its beans again.
+     */
+    public void unregister(@Nonnull final String name)
+    {
+        final Set<ObjectName> names = registeredNames.remove(name);
+        if (names != null) {
+            unregister(names);
+        }
+    }
+
+    /**
+     * Unregisters all MBeans of the services and the harness that are still registered.
+     */
+    public void unregisterAll()
+    {
+        for (final String name : registeredNames.keySet()) {
+            unregister(name);
+        }
+    }
+
+    private void unregister(final Set<ObjectName> names)
+    {
+        for (final ObjectName name : names) {
+            try {
+                if (platformMBeanServer.isRegistered(name)) {
+                    platformMBeanServer.unregisterMBean(name);
+                }
+            }
+            catch (Exception e) {
+                LOG.warnDebug(e, "Could not unregister %s", name);
+            }
+        }
+    }
+
+    private Set<ObjectName> getRegisteredNames(final String name)
+    {
+        final Set<ObjectName> names = Collections.newSetFromMap(Maps.<ObjectName, Boolean>newConcurrentMap());
+        final Set<ObjectName> existing = registeredNames.putIfAbsent(name, names);
+        return existing == null ? names : existing;
+    }
+
+    private final class PrefixingHandler implements InvocationHandler
+    {
+        private final String prefix;
+        private final Set<ObjectName> registeredNames;
+
+        private PrefixingHandler(final String prefix, final Set<ObjectName> registeredNames)
+        {
+            this.prefix = prefix;
+            this.registeredNames = registeredNames;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object [] args) throws Throwable
+        {
+            final String methodName = method.getName();
+
+            if ("getDefaultDomain".equals(methodName)) {
+                return prefix + platformMBeanServer.getDefaultDomain();
+            }
+            if ("getDomains".equals(methodName)) {
+                final Set<String> domains = Sets.newTreeSet();
+                for (final String domain : platformMBeanServer.getDomains()) {
+                    if (domain.startsWith(prefix)) {
+                        domains.add(domain.substring(prefix.length()));
+                    }
+                }
+                return domains.toArray(new String [domains.size()]);
+            }
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(this, args);
+            }
+
+            final Object [] prefixedArgs = args == null ? null : args.clone();
+            if (prefixedArgs != null) {
+                for (int i = 0; i < prefixedArgs.length; i++) {
+                    if (prefixedArgs[i] instanceof ObjectName) {
+                        prefixedArgs[i] = addPrefix((ObjectName) prefixedArgs[i]);
+                    }
+                }
+                // A query without a name would see all beans of the JVM.
+                if (methodName.startsWith("query") && prefixedArgs.length > 0 && prefixedArgs[0] == null) {
+                    prefixedArgs[0] = new ObjectName(prefix + "*:*");
+                }
+            }
+
+            final Object result;
+            try {
+                result = method.invoke(platformMBeanServer, prefixedArgs);
+            }
+            catch (InvocationTargetException ite) {
+                throw ite.getCause();
+            }
+
+            if (result instanceof ObjectInstance) {
+                final ObjectInstance instance = (ObjectInstance) result;
+                if (methodName.startsWith("register") || methodName.startsWith("create")) {
+                    registeredNames.add(instance.getObjectName());
+                }
+                return new ObjectInstance(removePrefix(instance.getObjectName()), instance.getClassName());
+            }
+            if (result instanceof ObjectName) {
+                return removePrefix((ObjectName) result);
+            }
+            if (result instanceof Set) {
+                final Set<Object> unprefixed = Sets.newHashSet();
+                for (final Object element : (Set<?>) result) {
+                    if (element instanceof ObjectInstance) {
+                        final ObjectInstance instance = (ObjectInstance) element;
+                        unprefixed.add(new ObjectInstance(removePrefix(instance.getObjectName()), instance.getClassName()));
+                    }
+                    else if (element instanceof ObjectName) {
+                        unprefixed.add(removePrefix((ObjectName) element));
+                    }
+                    else {
+                        unprefixed.add(element);
+                    }
+                }
+                return unprefixed;
+            }
+            if ("unregisterMBean".equals(methodName)) {
+                registeredNames.remove(prefixedArgs[0]);
+            }
+            return result;
+        }
+
+        private ObjectName addPrefix(final ObjectName name) throws MalformedObjectNameException
+        {
+            // Names without a domain belong to the default domain.
+            return new ObjectName(prefix + (name.getDomain().isEmpty() ? platformMBeanServer.getDefaultDomain() : "") + name.getCanonicalName());
+        }
+
+        private ObjectName removePrefix(final ObjectName name) throws MalformedObjectNameException
+        {
+            if (!name.getDomain().startsWith(prefix)) {
+                return name;
+            }
+            return new ObjectName(name.getCanonicalName().substring(prefix.length()));
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.inject.Binder;
+import com.google.inject.Binding;
+import com.google.inject.Inject;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.matcher.Matcher;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.name.Named;
+
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleListener;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Records how long each binding in the services and the test case takes to provision. Add an instance to the builder with
+ * {@link com.nesscomputing.testing.IntegrationTestRuleBuilder#addTweakedModules(TweakedModule...)} and ask it for the
+ * slowest provisions or the critical path of a service after the rule has started.
+ *
+ * Only the startup is recorded: an injector with a lifecycle stops recording when it reaches the start stage, all other injectors
+ * stop after {@link #MAX_PROVISIONS} provisions. Services are named by their instance key, e.g. <code>name</code> for the first
+ * replica and <code>name#1</code> for the second. A restarted instance replaces the provisions of the previous one.
+ *
+ * This requires a Guice version that supports provision listeners. On older versions, the profiler logs a message and records nothing.
+ */
+public class ProvisionProfiler extends TweakedModule
+{
+    /** Maximum number of provisions recorded per injector. */
+    public static final int MAX_PROVISIONS = 10000;
+
+    private static final Log LOG = Log.findLog();
+
+    private static final Comparator<Provision> BY_DURATION = new Comparator<Provision>() {
+        @Override
+        public int compare(final Provision p1, final Provision p2) {
+            return Long.valueOf(p1.getDurationNanos()).compareTo(p2.getDurationNanos());
+        }
+    };
+
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<Recorder>();
+
+    @Override
+    public Module getServiceModule(final Config config)
+    {
+        final Recorder recorder = new Recorder(null, recorders);
+        recorders.add(recorder);
+        return new ProfilerModule(recorder);
+    }
+
+    @Override
+    public Module getTestCaseModule(final Config config)
+    {
+        final Recorder recorder = new Recorder(TEST_CASE_NAME, recorders);
+        recorders.add(recorder);
+        return new ProfilerModule(recorder);
+    }
+
+    /**
+     * Returns all provisions recorded for a service, slowest first. The duration of a provision includes the provisioning time
+     * of all of its dependencies.
+     */
+    public List<Provision> getSlowestProvisions(final String serviceName, final int count)
+    {
+        final List<Provision> provisions = getProvisions(serviceName);
+        return ImmutableList.copyOf(Ordering.from(BY_DURATION).greatestOf(provisions, count));
+    }
+
+    /**
+     * Returns the critical path of the eager singleton startup of a service. This starts with the slowest top-level provision and
+     * descends into its slowest dependency until no dependencies are left.
+     */
+    public List<Provision> getCriticalPath(final String serviceName)
+    {
+        final List<Provision> path = Lists.newArrayList();
+
+        List<Provision> candidates = Lists.newArrayList();
+        for (final Provision provision : getProvisions(serviceName)) {
+            if (provision.getDependencyChain().size() == 1) {
+                candidates.add(provision);
+            }
+        }
+
+        while (!candidates.isEmpty()) {
+            final Provision slowest = Ordering.from(BY_DURATION).max(candidates);
+            path.add(slowest);
+            candidates = slowest.getDependencies();
+        }
+        return path;
+    }
+
+    /**
+     * Returns a human readable report with the slowest provisions and the critical path of every service.
+     */
+    public String getReport(final int count)
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (final String serviceName : getServiceNames()) {
+            sb.append("Service '").append(serviceName).append("', slowest provisions:\n");
+            for (final Provision provision : getSlowestProvisions(serviceName, count)) {
+                sb.append(String.format("  %10.3f ms (self %10.3f ms)  %s%n", toMillis(provision.getDurationNanos()), toMillis(provision.getSelfNanos()), provision.getKey()));
+            }
+            sb.append("Service '").append(serviceName).append("', critical path:\n");
+            String indent = "  ";
+            for (final Provision provision : getCriticalPath(serviceName)) {
+                sb.append(String.format("%s%.3f ms  %s%n", indent, toMillis(provision.getDurationNanos()), provision.getKey()));
+                indent += "  ";
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the names of all service instances for which provisions were recorded.
+     */
+    public List<String> getServiceNames()
+    {
+        final List<String> serviceNames = Lists.newArrayList();
+        for (final Recorder recorder : recorders) {
+            final String name = recorder.getName();
+            if (name != null && !serviceNames.contains(name)) {
+                serviceNames.add(name);
+            }
+        }
+        return serviceNames;
+    }
+
+    private List<Provision> getProvisions(final String serviceName)
+    {
+        final List<Provision> provisions = Lists.newArrayList();
+        for (final Recorder recorder : recorders) {
+            if (serviceName.equals(recorder.getName())) {
+                provisions.addAll(recorder.provisions);
+            }
+        }
+        return provisions;
+    }
+
+    private static double toMillis(final long nanos)
+    {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * A single recorded provision.
+     */
+    public static final class Provision
+    {
+        private final Key<?> key;
+        private final List<Key<?>> dependencyChain;
+        private final List<Provision> dependencies = new CopyOnWriteArrayList<Provision>();
+        private volatile long durationNanos;
+
+        Provision(final Key<?> key, final List<Key<?>> dependencyChain)
+        {
+            this.key = key;
+            this.dependencyChain = dependencyChain;
+        }
+
+        public Key<?> getKey()
+        {
+            return key;
+        }
+
+        /**
+         * The chain of keys that led to this provision, starting with the outermost key and ending with the key of this provision.
+         */
+        public List<Key<?>> getDependencyChain()
+        {
+            return dependencyChain;
+        }
+
+        /**
+         * All provisions that happened while this binding was provisioned.
+         */
+        public List<Provision> getDependencies()
+        {
+            return ImmutableList.copyOf(dependencies);
+        }
+
+        public long getDurationNanos()
+        {
+            return durationNanos;
+        }
+
+        /**
+         * The provisioning time minus the time spent provisioning dependencies.
+         */
+        public long getSelfNanos()
+        {
+            long selfNanos = durationNanos;
+            for (final Provision dependency : dependencies) {
+                selfNanos -= dependency.getDurationNanos();
+            }
+            return selfNanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s (%.3f ms)", key, toMillis(durationNanos));
+        }
+    }
+
+    /**
+     * Collects the provisions of a single injector.
+     */
+    static final class Recorder
+    {
+        private final List<Recorder> recorders;
+
+        private final Queue<Provision> provisions = new ConcurrentLinkedQueue<Provision>();
+        private final AtomicInteger provisionCount = new AtomicInteger();
+
+        private final ThreadLocal<Deque<Provision>> stack = new ThreadLocal<Deque<Provision>>() {
+            @Override
+            protected Deque<Provision> initialValue() {
+                return Lists.newLinkedList();
+            }
+        };
+
+        private volatile String serviceName;
+        private volatile String injectorName = null;
+        private volatile boolean recording = true;
+
+        Recorder(final String serviceName, final List<Recorder> recorders)
+        {
+            this.serviceName = serviceName;
+            this.recorders = recorders;
+        }
+
+        @Inject(optional=true)
+        void setServiceName(@Named("SERVICE") final String serviceName)
+        {
+            this.serviceName = serviceName;
+        }
+
+        @Inject(optional=true)
+        void setInjectorName(@Named(PlatformMBeanServers.INJECTOR_NAME) final String injectorName)
+        {
+            this.injectorName = injectorName;
+
+            // A restarted instance gets a new injector with the same name, drop the recorder of the old one.
+            for (final Recorder recorder : recorders) {
+                if (recorder != this && injectorName.equals(recorder.injectorName)) {
+                    recorders.remove(recorder);
+                }
+            }
+        }
+
+        @Inject(optional=true)
+        void setLifecycle(final Lifecycle lifecycle)
+        {
+            lifecycle.addListener(LifecycleStage.START_STAGE, new LifecycleListener() {
+                @Override
+                public void onStage(final LifecycleStage stage) {
+                    recording = false;
+                }
+            });
+        }
+
+        /**
+         * Replicas share the service name, but not the injector name.
+         */
+        String getName()
+        {
+            return injectorName == null ? serviceName : injectorName;
+        }
+
+        Object provision(final Key<?> key, final Method provisionMethod, final Object invocation) throws Throwable
+        {
+            if (!recording) {
+                return invoke(provisionMethod, invocation);
+            }
+
+            if (provisionCount.incrementAndGet() > MAX_PROVISIONS) {
+                recording = false;
+                LOG.info("Recorded %d provisions for '%s', not recording any more.", MAX_PROVISIONS, getName());
+                return invoke(provisionMethod, invocation);
+            }
+
+            final Deque<Provision> parents = stack.get();
+
+            final List<Key<?>> dependencyChain = Lists.newArrayList();
+            for (final Iterator<Provision> it = parents.descendingIterator(); it.hasNext(); ) {
+                dependencyChain.add(it.next().getKey());
+            }
+            dependencyChain.add(key);
+
+            final Provision provision = new Provision(key, ImmutableList.copyOf(dependencyChain));
+            final Provision parent = parents.peek();
+
+            parents.push(provision);
+            final long start = System.nanoTime();
+            try {
+                return invoke(provisionMethod, invocation);
+            }
+            finally {
+                provision.durationNanos = System.nanoTime() - start;
+                parents.pop();
+
+                if (parent != null) {
+                    parent.dependencies.add(provision);
+                }
+                provisions.add(provision);
+            }
+        }
+
+        private static Object invoke(final Method provisionMethod, final Object invocation) throws Throwable
+        {
+            try {
+                return provisionMethod.invoke(invocation);
+            }
+            catch (InvocationTargetException ite) {
+                throw ite.getCause();
+            }
+        }
+    }
+
+    /**
+     * Registers a provision listener through reflection, so that this class can be loaded on Guice versions without provision listeners.
+     */
+    private static final class ProfilerModule implements Module
+    {
+        private final Recorder recorder;
+
+        ProfilerModule(final Recorder recorder)
+        {
+            this.recorder = recorder;
+        }
+
+        @Override
+        public void configure(final Binder binder)
+        {
+            binder.requestInjection(recorder);
+
+            try {
+                final Class<?> listenerClass = Class.forName("com.google.inject.spi.ProvisionListener");
+                final Class<?> invocationClass = Class.forName("com.google.inject.spi.ProvisionListener$ProvisionInvocation");
+                final Method getBindingMethod = invocationClass.getMethod("getBinding");
+                final Method provisionMethod = invocationClass.getMethod("provision");
+
+                final Object listener = Proxy.newProxyInstance(listenerClass.getClassLoader(), new Class<?>[] { listenerClass }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                        if ("onProvision".equals(method.getName())) {
+                            final Binding<?> binding = Binding.class.cast(getBindingMethod.invoke(args[0]));
+                            recorder.provision(binding.getKey(), provisionMethod, args[0]);
+                            return null;
+                        }
+                        else if ("equals".equals(method.getName())) {
+                            return proxy == args[0];
+                        }
+                        else if ("hashCode".equals(method.getName())) {
+                            return System.identityHashCode(proxy);
+                        }
+                        return "ProvisionProfiler listener";
+                    }
+                });
+
+                final Object listeners = Array.newInstance(listenerClass, 1);
+                Array.set(listeners, 0, listener);
+                final Method bindListener = Binder.class.getMethod("bindListener", Matcher.class, listeners.getClass());
+                bindListener.invoke(binder, Matchers.any(), listeners);
+            }
+            catch (Exception e) {
+                LOG.infoDebug(e, "Could not register provision listener, this Guice version does not support it.");
+            }
+        }
+    }
+}
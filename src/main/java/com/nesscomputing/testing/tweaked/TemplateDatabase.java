@@ -0,0 +1,375 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.io.IOException;
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * A Postgres database for the test case and the services that is cloned from a template database. The template is created,
+ * migrated and seeded once per fingerprint of its setup steps and kept on the server for later runs. Every instance of this
+ * class gets its own clone with <code>CREATE DATABASE ... TEMPLATE ...</code>, which copies the files of the template and
+ * takes milliseconds instead of running the setup again.
+ *
+ * The connection settings are set as <code>ness.db.&lt;name&gt;.uri</code>, <code>.user</code> and <code>.password</code>
+ * for the test case and the services. The name of the clone is fixed when the instance is built, but the integration test rule
+ * only creates the clone with {@link #create()} when the test starts and drops it with {@link #drop()} when the test ends.
+ * A test that uses the same instance again gets a fresh clone under the same name. Clones that are left are dropped when the
+ * JVM exits.
+ *
+ * The server is found through the <code>ness.testing.db.uri</code>, <code>ness.testing.db.user</code> and
+ * <code>ness.testing.db.password</code> system properties, by default a local Postgres.
+ */
+public class TemplateDatabase extends TweakedModule
+{
+    public static final String SERVER_URI_PROPERTY = "ness.testing.db.uri";
+    public static final String SERVER_USER_PROPERTY = "ness.testing.db.user";
+    public static final String SERVER_PASSWORD_PROPERTY = "ness.testing.db.password";
+
+    private static final String DEFAULT_SERVER_URI = "jdbc:postgresql://localhost:5432/postgres";
+    private static final String DEFAULT_SERVER_USER = "postgres";
+
+    private static final Log LOG = Log.findLog();
+
+    /** Template database names by server and fingerprint. */
+    private static final ConcurrentMap<String, String> TEMPLATES = new ConcurrentHashMap<String, String>();
+
+    /** Clones that are still around. */
+    private static final Queue<TemplateDatabase> CLONES = new ConcurrentLinkedQueue<TemplateDatabase>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("template-database-cleanup") {
+            @Override
+            public void run() {
+                TemplateDatabase clone;
+                while ((clone = CLONES.poll()) != null) {
+                    clone.drop();
+                }
+            }
+        });
+    }
+
+    private final String name;
+    private final String serverUri;
+    private final String user;
+    private final String password;
+    private final List<DatabaseSetup> setups;
+    private final String templateName;
+    private final String cloneName;
+
+    private boolean cloned = false;
+
+    public static Builder builder(@Nonnull final String name)
+    {
+        return new Builder(name);
+    }
+
+    private TemplateDatabase(final Builder builder)
+    {
+        this.name = builder.name;
+        this.serverUri = builder.serverUri;
+        this.user = builder.user;
+        this.password = builder.password;
+        this.setups = ImmutableList.copyOf(builder.setups);
+
+        final Hasher hasher = Hashing.sha1().newHasher();
+        for (final DatabaseSetup setup : setups) {
+            hasher.putString(setup.getClass().getName()).putString(setup.getFingerprint());
+        }
+        this.templateName = "ness_tmpl_" + hasher.hash().toString().substring(0, 16);
+        this.cloneName = templateName.replace("ness_tmpl_", "ness_") + "_" + randomSuffix();
+    }
+
+    @Override
+    public Map<String, String> getServiceConfigTweaks()
+    {
+        return ImmutableMap.of("ness.db." + name + ".uri", getJdbcUri(),
+                               "ness.db." + name + ".user", user,
+                               "ness.db." + name + ".password", password);
+    }
+
+    @Override
+    public Map<String, String> getTestCaseConfigTweaks()
+    {
+        return getServiceConfigTweaks();
+    }
+
+    /**
+     * Returns the JDBC URI of the clone. The database only exists between {@link #create()} and {@link #drop()}.
+     */
+    public String getJdbcUri()
+    {
+        return getDatabaseUri(cloneName);
+    }
+
+    /**
+     * Creates the clone, and the template if necessary. Does nothing if the clone exists.
+     */
+    public synchronized void create()
+    {
+        if (cloned) {
+            return;
+        }
+
+        final long startNanos = System.nanoTime();
+        try {
+            ensureTemplate();
+            execute(serverUri, "CREATE DATABASE " + cloneName + " TEMPLATE " + templateName);
+        }
+        catch (SQLException sqle) {
+            throw Throwables.propagate(sqle);
+        }
+        LOG.debug("Cloned %s to %s in %d ms", templateName, cloneName, (System.nanoTime() - startNanos) / 1000000L);
+        cloned = true;
+        CLONES.add(this);
+    }
+
+    /**
+     * Drops the clone. The next call to {@link #create()} creates a new one under the same name.
+     */
+    public synchronized void drop()
+    {
+        if (!cloned) {
+            return;
+        }
+
+        try {
+            execute(serverUri, "DROP DATABASE IF EXISTS " + cloneName);
+        }
+        catch (SQLException sqle) {
+            LOG.warn(sqle, "Could not drop database %s", cloneName);
+        }
+        CLONES.remove(this);
+        cloned = false;
+    }
+
+    private void ensureTemplate() throws SQLException
+    {
+        final String templateKey = serverUri + "/" + templateName;
+
+        synchronized (TEMPLATES) {
+            if (!TEMPLATES.containsKey(templateKey)) {
+                createTemplate();
+                TEMPLATES.put(templateKey, templateName);
+            }
+        }
+    }
+
+    /**
+     * Creates the template unless an earlier run did already. The template is built under a temporary name and renamed when it is
+     * complete, so that a failed setup or a concurrent test JVM never leaves a half built template behind.
+     */
+    private void createTemplate() throws SQLException
+    {
+        if (databaseExists(templateName)) {
+            LOG.debug("Reusing template database %s", templateName);
+            return;
+        }
+
+        final String buildName = templateName + "_" + randomSuffix();
+        final long startNanos = System.nanoTime();
+        execute(serverUri, "CREATE DATABASE " + buildName);
+        try {
+            final Connection connection = DriverManager.getConnection(getDatabaseUri(buildName), user, password);
+            try {
+                for (final DatabaseSetup setup : setups) {
+                    setup.apply(connection);
+                }
+            }
+            finally {
+                connection.close();
+            }
+
+            execute(serverUri, "ALTER DATABASE " + buildName + " RENAME TO " + templateName);
+            LOG.info("Created template database %s in %d ms", templateName, (System.nanoTime() - startNanos) / 1000000L);
+        }
+        catch (SQLException sqle) {
+            execute(serverUri, "DROP DATABASE IF EXISTS " + buildName);
+            if (!databaseExists(templateName)) {
+                throw sqle;
+            }
+            // Another JVM won the race.
+        }
+    }
+
+    private boolean databaseExists(final String databaseName) throws SQLException
+    {
+        final Connection connection = DriverManager.getConnection(serverUri, user, password);
+        try {
+            final PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM pg_database WHERE datname = ?");
+            try {
+                statement.setString(1, databaseName);
+                final ResultSet resultSet = statement.executeQuery();
+                try {
+                    return resultSet.next();
+                }
+                finally {
+                    resultSet.close();
+                }
+            }
+            finally {
+                statement.close();
+            }
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    private void execute(final String uri, final String sql) throws SQLException
+    {
+        final Connection connection = DriverManager.getConnection(uri, user, password);
+        try {
+            final Statement statement = connection.createStatement();
+            try {
+                statement.execute(sql);
+            }
+            finally {
+                statement.close();
+            }
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Returns the server URI with the database replaced.
+     */
+    private String getDatabaseUri(final String databaseName)
+    {
+        final URI uri = URI.create(serverUri.substring("jdbc:".length()));
+        return "jdbc:" + uri.getScheme() + "://" + uri.getRawAuthority() + "/" + databaseName + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+    }
+
+    private static String randomSuffix()
+    {
+        return Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TemplateDatabase[" + name + " -> " + cloneName + (cloned ? "" : " (not created)") + "]";
+    }
+
+    public static final class Builder
+    {
+        private final String name;
+        private String serverUri = System.getProperty(SERVER_URI_PROPERTY, DEFAULT_SERVER_URI);
+        private String user = System.getProperty(SERVER_USER_PROPERTY, DEFAULT_SERVER_USER);
+        private String password = System.getProperty(SERVER_PASSWORD_PROPERTY, "");
+        private final List<DatabaseSetup> setups = Lists.newArrayList();
+
+        private Builder(final String name)
+        {
+            Preconditions.checkArgument(name != null && !name.isEmpty(), "The database name must not be empty!");
+            this.name = name;
+        }
+
+        /**
+         * Set the server that holds the templates and clones. The user must be allowed to create databases.
+         */
+        public Builder setServer(@Nonnull final String serverUri, @Nonnull final String user, @Nonnull final String password)
+        {
+            Preconditions.checkArgument(serverUri.startsWith("jdbc:"), "%s is not a JDBC URI!", serverUri);
+            this.serverUri = serverUri;
+            this.user = user;
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * Add a setup step to the template.
+         */
+        public Builder addSetup(@Nonnull final DatabaseSetup setup)
+        {
+            Preconditions.checkNotNull(setup, "The setup must not be null!");
+            setups.add(setup);
+            return this;
+        }
+
+        /**
+         * Add a SQL script from the class path to the template. The fingerprint is the hash of the script.
+         */
+        public Builder addSqlResource(@Nonnull final String resourceName)
+        {
+            final String sql;
+            try {
+                sql = Resources.toString(Resources.getResource(resourceName), Charsets.UTF_8);
+            }
+            catch (IOException ioe) {
+                throw Throwables.propagate(ioe);
+            }
+
+            final String fingerprint = Hashing.sha1().hashString(sql, Charsets.UTF_8).toString();
+            return addSetup(new DatabaseSetup() {
+                @Override
+                public String getFingerprint() {
+                    return fingerprint;
+                }
+
+                @Override
+                public void apply(final Connection connection) throws SQLException {
+                    final Statement statement = connection.createStatement();
+                    try {
+                        statement.execute(sql);
+                    }
+                    finally {
+                        statement.close();
+                    }
+                }
+
+                @Override
+                public String toString() {
+                    return resourceName;
+                }
+            });
+        }
+
+        public TemplateDatabase build()
+        {
+            return new TemplateDatabase(this);
+        }
+    }
+}
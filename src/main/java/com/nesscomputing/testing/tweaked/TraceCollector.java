@@ -0,0 +1,323 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Collects the spans of all http calls in a test environment. Every integration test rule has its own collector. Spans are
+ * appended to a lock-free queue, the call trees are only built when a test asks for them.
+ *
+ * @see TweakedModules#getTracingModule()
+ */
+public final class TraceCollector
+{
+    /** Header that carries the trace id from one hop to the next. */
+    public static final String TRACE_ID_HEADER = "X-Ness-Trace-Id";
+
+    /** Header that carries the id of the calling span. */
+    public static final String PARENT_SPAN_ID_HEADER = "X-Ness-Span-Id";
+
+    private static final Comparator<Span> BY_START = new Comparator<Span>() {
+        @Override
+        public int compare(final Span s1, final Span s2) {
+            return Long.valueOf(s1.getStartNanos()).compareTo(s2.getStartNanos());
+        }
+    };
+
+    private final Queue<Span> spans = new ConcurrentLinkedQueue<Span>();
+
+    // Every collector tracks its own active spans, so that a span of one rule never becomes the parent of a span of another.
+    private final ThreadLocal<Span> currentSpan = new ThreadLocal<Span>();
+
+    /**
+     * Returns the ids of all traces that have at least one finished span, in order of their first span.
+     */
+    public List<String> getTraceIds()
+    {
+        final Set<String> traceIds = Sets.newLinkedHashSet();
+        for (final Span span : getSortedSpans()) {
+            traceIds.add(span.getTraceId());
+        }
+        return ImmutableList.copyOf(traceIds);
+    }
+
+    /**
+     * Returns all finished spans of a trace, in order of their start time.
+     */
+    public List<Span> getSpans(@Nonnull final String traceId)
+    {
+        final List<Span> result = Lists.newArrayList();
+        for (final Span span : getSortedSpans()) {
+            if (traceId.equals(span.getTraceId())) {
+                result.add(span);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the call tree of a trace. The roots are all spans whose parent is not part of the trace, usually the
+     * single call from the test case.
+     */
+    public List<TraceNode> getCallTree(@Nonnull final String traceId)
+    {
+        final List<Span> traceSpans = getSpans(traceId);
+
+        final Map<String, TraceNode> nodes = Maps.newHashMap();
+        for (final Span span : traceSpans) {
+            nodes.put(span.getSpanId(), new TraceNode(span));
+        }
+
+        final List<TraceNode> roots = Lists.newArrayList();
+        for (final Span span : traceSpans) {
+            final TraceNode parent = span.getParentSpanId() == null ? null : nodes.get(span.getParentSpanId());
+            if (parent == null) {
+                roots.add(nodes.get(span.getSpanId()));
+            }
+            else {
+                parent.children.add(nodes.get(span.getSpanId()));
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Returns a human readable call tree of a trace.
+     */
+    public String formatCallTree(@Nonnull final String traceId)
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (final TraceNode root : getCallTree(traceId)) {
+            root.format(sb, "");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Removes all collected spans.
+     */
+    public void clear()
+    {
+        spans.clear();
+    }
+
+    private List<Span> getSortedSpans()
+    {
+        final List<Span> result = Lists.newArrayList(spans);
+        Collections.sort(result, BY_START);
+        return result;
+    }
+
+    /**
+     * Starts a new span. If a span is active on the current thread, the new span is its child. Otherwise the new span
+     * is the child of the given parent span id, or starts a new trace if the trace id is null.
+     */
+    Span startSpan(final String serviceName,
+                   final Kind kind,
+                   final String name,
+                   @CheckForNull final String traceId,
+                   @CheckForNull final String parentSpanId)
+    {
+        final Span current = currentSpan.get();
+        final Span span;
+        if (current != null && kind == Kind.CLIENT) {
+            span = new Span(current.getTraceId(), newId(), current.getSpanId(), serviceName, kind, name);
+        }
+        else {
+            span = new Span(traceId == null ? newId() : traceId, newId(), parentSpanId, serviceName, kind, name);
+        }
+        span.previous = current;
+        currentSpan.set(span);
+        return span;
+    }
+
+    /**
+     * Finishes a span started on the current thread and adds it to the collector. Clears the active span of the thread if
+     * this was the outermost span.
+     */
+    void finishSpan(final Span span, final int status)
+    {
+        span.durationNanos = System.nanoTime() - span.startNanos;
+        span.status = status;
+        if (span.previous == null) {
+            currentSpan.remove();
+        }
+        else {
+            currentSpan.set(span.previous);
+        }
+        span.previous = null;
+        spans.add(span);
+    }
+
+    /**
+     * Returns the span that is active on the current thread or null.
+     */
+    @CheckForNull
+    Span currentSpan()
+    {
+        return currentSpan.get();
+    }
+
+    private static String newId()
+    {
+        return Long.toHexString(ThreadLocalRandom.current().nextLong());
+    }
+
+    public enum Kind
+    {
+        /** An outgoing call from an http client. */
+        CLIENT,
+
+        /** A request handled by a service. */
+        SERVER;
+    }
+
+    /**
+     * A single timed call.
+     */
+    public static final class Span
+    {
+        private final String traceId;
+        private final String spanId;
+        private final String parentSpanId;
+        private final String serviceName;
+        private final Kind kind;
+        private final String name;
+        private final long startNanos = System.nanoTime();
+        private volatile long durationNanos = -1;
+        private volatile int status = -1;
+        private Span previous;
+
+        Span(final String traceId, final String spanId, final String parentSpanId, final String serviceName, final Kind kind, final String name)
+        {
+            this.traceId = traceId;
+            this.spanId = spanId;
+            this.parentSpanId = parentSpanId;
+            this.serviceName = serviceName;
+            this.kind = kind;
+            this.name = name;
+        }
+
+        public String getTraceId()
+        {
+            return traceId;
+        }
+
+        public String getSpanId()
+        {
+            return spanId;
+        }
+
+        @CheckForNull
+        public String getParentSpanId()
+        {
+            return parentSpanId;
+        }
+
+        /** The service that made or handled the call. */
+        public String getServiceName()
+        {
+            return serviceName;
+        }
+
+        public Kind getKind()
+        {
+            return kind;
+        }
+
+        /** Method and URI of the call. */
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getStartNanos()
+        {
+            return startNanos;
+        }
+
+        public long getDurationNanos()
+        {
+            return durationNanos;
+        }
+
+        public long getDuration(final TimeUnit unit)
+        {
+            return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /** The http status code, -1 if unknown. */
+        public int getStatus()
+        {
+            return status;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s %s %s -> %d (%.3f ms)", serviceName, kind, name, status, durationNanos / 1000000.0);
+        }
+    }
+
+    /**
+     * A span and all the spans that were started while it was active.
+     */
+    public static final class TraceNode
+    {
+        private final Span span;
+        private final List<TraceNode> children = Lists.newArrayList();
+
+        TraceNode(final Span span)
+        {
+            this.span = span;
+        }
+
+        public Span getSpan()
+        {
+            return span;
+        }
+
+        public List<TraceNode> getChildren()
+        {
+            return Collections.unmodifiableList(children);
+        }
+
+        private void format(final StringBuilder sb, final String indent)
+        {
+            sb.append(indent).append(span).append('\n');
+            for (final TraceNode child : children) {
+                child.format(sb, indent + "  ");
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import com.nesscomputing.testing.tweaked.TraceCollector.Kind;
+import com.nesscomputing.testing.tweaked.TraceCollector.Span;
+
+/**
+ * Records a server span for every request that a service handles. The span stays active on the request thread, so
+ * all calls that the service makes while handling the request become its children.
+ */
+@Singleton
+class TracingFilter implements Filter
+{
+    private final TraceCollector collector;
+
+    private volatile String serviceName = TweakedModule.TEST_CASE_NAME;
+
+    @Inject
+    TracingFilter(final TraceCollector collector)
+    {
+        this.collector = collector;
+    }
+
+    @Inject(optional=true)
+    void setServiceName(@Named("SERVICE") final String serviceName)
+    {
+        this.serviceName = serviceName;
+    }
+
+    @Override
+    public void init(final FilterConfig filterConfig)
+    {
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException, ServletException
+    {
+        if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final HttpServletRequest httpRequest = (HttpServletRequest) request;
+        final HttpServletResponse httpResponse = (HttpServletResponse) response;
+
+        final String name = httpRequest.getMethod() + " " + httpRequest.getRequestURI();
+        final Span span = collector.startSpan(serviceName, Kind.SERVER, name,
+                                              httpRequest.getHeader(TraceCollector.TRACE_ID_HEADER),
+                                              httpRequest.getHeader(TraceCollector.PARENT_SPAN_ID_HEADER));
+        int status = -1;
+        try {
+            chain.doFilter(request, response);
+            status = httpResponse.getStatus();
+        }
+        finally {
+            collector.finishSpan(span, status);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.servlet.ServletModule;
+
+import com.nesscomputing.httpclient.HttpClientObserverGroup;
+import com.nesscomputing.httpclient.guice.HttpClientModule;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Binds the tracing observer for all http clients and, for services, the tracing filter. The spans go
+ * into the {@link TraceCollector} of the integration test rule.
+ */
+public class TracingModule extends AbstractModule
+{
+    private static final Log LOG = Log.findLog();
+
+    private final boolean service;
+
+    public TracingModule(final boolean service)
+    {
+        this.service = service;
+    }
+
+    @Override
+    protected void configure()
+    {
+        try {
+            HttpClientModule.bindNewObserver(binder(), HttpClientObserverGroup.PLATFORM_INTERNAL).to(TracingObserver.class);
+        }
+        catch (NoClassDefFoundError ncdfe) {
+            LOG.infoDebug(ncdfe, "Could not bind tracing observer, ness-httpclient is not available");
+        }
+
+        if (service) {
+            try {
+                install (new ServletModule() {
+                    @Override
+                    protected void configureServlets() {
+                        filter("/*").through(TracingFilter.class);
+                    }
+                });
+            }
+            catch (NoClassDefFoundError ncdfe) {
+                LOG.infoDebug(ncdfe, "Could not bind tracing filter, guice-servlet is not available");
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.io.IOException;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import com.nesscomputing.httpclient.HttpClientObserver;
+import com.nesscomputing.httpclient.HttpClientRequest;
+import com.nesscomputing.httpclient.HttpClientResponse;
+import com.nesscomputing.testing.tweaked.TraceCollector.Kind;
+import com.nesscomputing.testing.tweaked.TraceCollector.Span;
+
+/**
+ * Starts a client span for every outgoing request and passes trace id and span id on to the called service.
+ * The http client calls the observer for request and response on the calling thread, so the span that is
+ * active on the current thread is the span of the request.
+ */
+class TracingObserver extends HttpClientObserver
+{
+    private final TraceCollector collector;
+
+    private volatile String serviceName = TweakedModule.TEST_CASE_NAME;
+
+    @Inject
+    TracingObserver(final TraceCollector collector)
+    {
+        this.collector = collector;
+    }
+
+    @Inject(optional=true)
+    void setServiceName(@Named("SERVICE") final String serviceName)
+    {
+        this.serviceName = serviceName;
+    }
+
+    @Override
+    public <RequestType> HttpClientRequest<RequestType> onRequestSubmitted(final HttpClientRequest<RequestType> request) throws IOException
+    {
+        // Client spans never nest on a thread. A client span that is still active belongs to
+        // a request that failed without a response.
+        final Span abandoned = collector.currentSpan();
+        if (abandoned != null && abandoned.getKind() == Kind.CLIENT) {
+            collector.finishSpan(abandoned, -1);
+        }
+
+        final Span span = collector.startSpan(serviceName, Kind.CLIENT, request.getHttpMethod() + " " + request.getUri(), null, null);
+
+        return HttpClientRequest.Builder.fromRequest(request)
+            .replaceHeader(TraceCollector.TRACE_ID_HEADER, span.getTraceId())
+            .replaceHeader(TraceCollector.PARENT_SPAN_ID_HEADER, span.getSpanId())
+            .request();
+    }
+
+    @Override
+    public HttpClientResponse onResponseReceived(final HttpClientResponse response) throws IOException
+    {
+        final Span span = collector.currentSpan();
+        if (span != null && span.getKind() == Kind.CLIENT) {
+            collector.finishSpan(span, response.getStatusCode());
+        }
+        return response;
+    }
+}
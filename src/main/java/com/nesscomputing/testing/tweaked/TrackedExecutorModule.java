@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Scopes;
+import com.google.inject.name.Named;
+
+/**
+ * Binds executors from the {@link ExecutorTracker} of the integration test rule, so that the test can wait for their work with
+ * {@link com.nesscomputing.testing.IntegrationTestRule#awaitQuiescence(long, java.util.concurrent.TimeUnit)}. Install it in a service
+ * module instead of the bindings of the production executors.
+ *
+ * <pre>
+ * new TrackedExecutorModule()
+ *     .bindExecutor(Key.get(ExecutorService.class, Names.named("indexer")), 4)
+ *     .bindScheduledExecutor(Key.get(ScheduledExecutorService.class, Names.named("refresh")), 1);
+ * </pre>
+ */
+public class TrackedExecutorModule extends AbstractModule
+{
+    private final List<TrackedBinding<?>> bindings = Lists.newArrayList();
+
+    public TrackedExecutorModule bindExecutor(@Nonnull final Key<ExecutorService> key, final int threads)
+    {
+        bindings.add(new TrackedBinding<ExecutorService>(key, threads, false));
+        return this;
+    }
+
+    public TrackedExecutorModule bindScheduledExecutor(@Nonnull final Key<ScheduledExecutorService> key, final int threads)
+    {
+        bindings.add(new TrackedBinding<ScheduledExecutorService>(key, threads, true));
+        return this;
+    }
+
+    @Override
+    protected void configure()
+    {
+        for (final TrackedBinding<?> binding : bindings) {
+            bindTracked(binding);
+        }
+    }
+
+    /**
+     * The module may be installed in many injectors, e.g. for every replica of a service. Each of them gets its own provider,
+     * which creates the executors through the tracker of that injector.
+     */
+    private <T extends ExecutorService> void bindTracked(final TrackedBinding<T> binding)
+    {
+        bind(binding.key).toProvider(new TrackedProvider<T>(binding, getProvider(ExecutorTracker.class))).in(Scopes.SINGLETON);
+    }
+
+    private static final class TrackedBinding<T extends ExecutorService>
+    {
+        private final Key<T> key;
+        private final int threads;
+        private final boolean scheduled;
+
+        private TrackedBinding(final Key<T> key, final int threads, final boolean scheduled)
+        {
+            Preconditions.checkNotNull(key, "the key must not be null!");
+            Preconditions.checkArgument(threads > 0, "the number of threads must be positive!");
+            this.key = key;
+            this.threads = threads;
+            this.scheduled = scheduled;
+        }
+    }
+
+    private static final class TrackedProvider<T extends ExecutorService> implements Provider<T>
+    {
+        private final TrackedBinding<T> binding;
+        private final Provider<ExecutorTracker> executorTrackerProvider;
+
+        private TrackedProvider(final TrackedBinding<T> binding, final Provider<ExecutorTracker> executorTrackerProvider)
+        {
+            this.binding = binding;
+            this.executorTrackerProvider = executorTrackerProvider;
+        }
+
+        @Override
+        public T get()
+        {
+            final Key<T> key = binding.key;
+            final String name = (key.getAnnotation() instanceof Named) ? ((Named) key.getAnnotation()).value() : key.toString();
+            final ExecutorTracker executorTracker = executorTrackerProvider.get();
+            final ExecutorService executor = binding.scheduled ? executorTracker.newScheduledExecutor(name, binding.threads) : executorTracker.newExecutor(name, binding.threads);
+
+            @SuppressWarnings("unchecked")
+            final T result = (T) executor;
+            return result;
+        }
+    }
+}
@@ -30,6 +30,9 @@ import com.nesscomputing.config.Config;
  */
 public class TweakedModule
 {
+    /** Name of the test case injector, used where the injectors of the services use their service name. */
+    public static final String TEST_CASE_NAME = "__testcase";
+
     /**
      * Returns a TweakedModule wrapper for the passed in object. This object could be:
      * <ul>
@@ -60,6 +63,15 @@ public class TweakedModule
         return new TweakedModule(ModuleProvider.EMPTY_MODULE_PROVIDER, ModuleProvider.forModule(serviceModuleObject));
     }
 
+    /**
+     * Returns a TweakedModule wrapper for two objects, one for the test case and one for the services. Either one may be null.
+     */
+    static TweakedModule forModules(final Object testModuleObject, final Object serviceModuleObject)
+    {
+        return new TweakedModule(testModuleObject == null ? ModuleProvider.EMPTY_MODULE_PROVIDER : ModuleProvider.forModule(testModuleObject),
+                                 serviceModuleObject == null ? ModuleProvider.EMPTY_MODULE_PROVIDER : ModuleProvider.forModule(serviceModuleObject));
+    }
+
     private final ModuleProvider testModuleProvider;
     private final ModuleProvider serviceModuleProvider;
 
@@ -109,4 +121,14 @@ public class TweakedModule
     {
         return testModuleProvider.getModule(config);
     }
+
+    ModuleProvider getTestModuleProvider()
+    {
+        return testModuleProvider;
+    }
+
+    ModuleProvider getServiceModuleProvider()
+    {
+        return serviceModuleProvider;
+    }
 }
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Sets;
+
+import com.nesscomputing.testing.tweaked.TweakedModules.TweakEnabler;
+
+/**
+ * Converts {@link TweakedModule} instances into strings and back. This allows recreating the modules of a service
+ * somewhere else than in the builder, e.g. in a forked JVM.
+ *
+ * A tweaked module can be converted if it is
+ * <ul>
+ * <li>one of the {@link TweakEnabler} modules.</li>
+ * <li>created with {@link TweakedModule#forServiceModule(Object)} or {@link TweakedModule#forTestCaseModule(Object)} from a
+ *     class name or a class. The class must be public and have a public no-args c'tor or a c'tor that takes a config object.
+ *     Module instances are not converted, because their state would be lost.</li>
+ * <li>an instance of a public subclass of TweakedModule that has a public no-args c'tor.</li>
+ * </ul>
+ */
+public final class TweakedModuleSpecs
+{
+    private static final String ENABLER = "enabler:";
+    private static final String CLASS = "class:";
+    private static final String MODULES = "modules:";
+    private static final String EMPTY = "-";
+    private static final String SEPARATOR = "|";
+
+    private TweakedModuleSpecs()
+    {
+    }
+
+    /**
+     * Returns a string representation for the given tweaked module or null if the module can not be recreated from a string.
+     */
+    @CheckForNull
+    public static String toSpec(@Nonnull final TweakedModule tweakedModule)
+    {
+        for (final TweakEnabler tweakEnabler : TweakEnabler.values()) {
+            if (tweakEnabler.get() == tweakedModule) {
+                return ENABLER + tweakEnabler.name();
+            }
+        }
+
+        final Class<?> tweakedModuleClass = tweakedModule.getClass();
+        if (tweakedModuleClass != TweakedModule.class) {
+            if (ModuleProvider.isInstantiable(tweakedModuleClass)) {
+                try {
+                    tweakedModuleClass.getConstructor();
+                    return CLASS + tweakedModuleClass.getName();
+                }
+                catch (NoSuchMethodException nsme) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        final String testModuleSpec = toSpec(tweakedModule.getTestModuleProvider());
+        final String serviceModuleSpec = toSpec(tweakedModule.getServiceModuleProvider());
+
+        return (testModuleSpec == null || serviceModuleSpec == null) ? null : MODULES + testModuleSpec + SEPARATOR + serviceModuleSpec;
+    }
+
+    /**
+     * Returns true if the given tweaked module can be converted into a string.
+     */
+    public static boolean isConvertible(@Nonnull final TweakedModule tweakedModule)
+    {
+        return toSpec(tweakedModule) != null;
+    }
+
+    /**
+     * Recreates a tweaked module from a string returned by {@link TweakedModuleSpecs#toSpec(TweakedModule)}. Module classes are
+     * loaded through the context class loader of the current thread.
+     */
+    public static TweakedModule fromSpec(@Nonnull final String spec)
+    {
+        if (spec.startsWith(ENABLER)) {
+            return TweakEnabler.valueOf(spec.substring(ENABLER.length())).get();
+        }
+        else if (spec.startsWith(CLASS)) {
+            try {
+                return TweakedModule.class.cast(ModuleProvider.loadClass(spec.substring(CLASS.length())).getConstructor().newInstance());
+            }
+            catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        else if (spec.startsWith(MODULES)) {
+            final String modules = spec.substring(MODULES.length());
+            final int index = modules.indexOf(SEPARATOR);
+            if (index >= 0) {
+                return TweakedModule.forModules(fromModuleSpec(modules.substring(0, index)), fromModuleSpec(modules.substring(index + 1)));
+            }
+        }
+        throw new IllegalArgumentException("Can not create a tweaked module from '" + spec + "'!");
+    }
+
+    /**
+     * Returns the names of all classes that a tweaked module refers to, i.e. its own class and the classes of the test case
+     * and service modules if they are known before the modules are created.
+     */
+    public static Set<String> getClassNames(@Nonnull final TweakedModule tweakedModule)
+    {
+        final Set<String> classNames = Sets.newHashSet(tweakedModule.getClass().getName());
+        for (final TweakEnabler tweakEnabler : TweakEnabler.values()) {
+            if (tweakEnabler.get() == tweakedModule) {
+                classNames.addAll(TweakedModules.getProviderClassNames());
+            }
+        }
+        for (final ModuleProvider moduleProvider : new ModuleProvider [] { tweakedModule.getTestModuleProvider(), tweakedModule.getServiceModuleProvider() }) {
+            final String className = moduleProvider.getModuleClassName();
+            if (className != null) {
+                classNames.add(className);
+            }
+        }
+        return classNames;
+    }
+
+    @CheckForNull
+    private static String toSpec(final ModuleProvider moduleProvider)
+    {
+        return moduleProvider == ModuleProvider.EMPTY_MODULE_PROVIDER ? EMPTY : moduleProvider.getModuleClassName();
+    }
+
+    @CheckForNull
+    private static String fromModuleSpec(final String moduleSpec)
+    {
+        return EMPTY.equals(moduleSpec) ? null : moduleSpec;
+    }
+}
@@ -15,11 +15,14 @@
  */
 package com.nesscomputing.testing.tweaked;
 
+import java.util.List;
 import java.util.Map;
 
 import javax.management.MBeanServer;
 
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.inject.AbstractModule;
 import com.google.inject.Module;
 import com.google.inject.Provider;
@@ -68,7 +71,19 @@ public final class TweakedModules
         serviceTweaks(TweakedModules.getServiceTweaks()),
 
         /** Thread delegated scope. */
-        threadDelegatedScope(TweakedModules.getThreadDelegatedModule());
+        threadDelegatedScope(TweakedModules.getThreadDelegatedModule()),
+
+        /** In-memory service discovery, replaces the discovery announcements. Testcase and services. */
+        inMemoryDiscoveryEnabled(TweakedModules.getInMemoryDiscoveryModule()),
+
+        /** Trace http calls across services into the trace collector of the rule. Testcase and services. */
+        tracingEnabled(TweakedModules.getTracingModule()),
+
+        /** Bind the virtual clock of the rule as Guava ticker. Testcase and services. */
+        virtualClockEnabled(TweakedModules.getVirtualClockModule()),
+
+        /** Export MBeans to the platform MBean server, prefixed with the service name. Use instead of jmxEnabled. Testcase and services. */
+        platformJmxEnabled(TweakedModules.getPlatformJmxModule());
 
         private final TweakedModule module;
 
@@ -96,6 +111,22 @@ public final class TweakedModules
     {
     }
 
+    /**
+     * Returns the class names of all modules that the tweaked modules in this class load by name.
+     */
+    static List<String> getProviderClassNames()
+    {
+        final List<String> classNames = Lists.newArrayList();
+        for (final ModuleProvider moduleProvider : new ModuleProvider [] { JERSEY_PROVIDER, JACKSON_PROVIDER, HTTPCLIENT_PROVIDER, HTTPSERVER_PROVIDER,
+                                                                           GALAXY_PROVIDER, METRICS_PROVIDER, THREAD_DELEGATED_PROVIDER }) {
+            final String className = moduleProvider.getModuleClassName();
+            if (className != null) {
+                classNames.add(className);
+            }
+        }
+        return classNames;
+    }
+
     public static TweakedModule getLifecycleModule()
     {
         return new TweakedModule() {
@@ -262,4 +293,80 @@ public final class TweakedModules
             }
         };
     }
+
+    public static TweakedModule getInMemoryDiscoveryModule()
+    {
+        return new TweakedModule() {
+            @Override
+            public Map<String, String> getTestCaseConfigTweaks() {
+                return getServiceConfigTweaks();
+            }
+
+            @Override
+            public Map<String, String> getServiceConfigTweaks() {
+                return ImmutableMap.of("ness.discovery.enabled", "false");
+            }
+
+            @Override
+            public Module getTestCaseModule(final Config config) {
+                return getServiceModule(config);
+            }
+
+            @Override
+            public Module getServiceModule(final Config config) {
+                return new InMemoryDiscoveryModule();
+            }
+        };
+    }
+
+    public static TweakedModule getTracingModule()
+    {
+        return new TweakedModule() {
+            @Override
+            public Module getTestCaseModule(final Config config) {
+                return new TracingModule(false);
+            }
+
+            @Override
+            public Module getServiceModule(final Config config) {
+                return new TracingModule(true);
+            }
+        };
+    }
+
+    public static TweakedModule getVirtualClockModule()
+    {
+        return new TweakedModule() {
+            @Override
+            public Module getTestCaseModule(final Config config) {
+                return getServiceModule(config);
+            }
+
+            @Override
+            public Module getServiceModule(final Config config) {
+                return new AbstractModule() {
+                    @Override
+                    public void configure() {
+                        // The clock itself is bound by the rule.
+                        bind (Ticker.class).to(VirtualClock.class);
+                    }
+                };
+            }
+        };
+    }
+
+    public static TweakedModule getPlatformJmxModule()
+    {
+        return new TweakedModule() {
+            @Override
+            public Module getTestCaseModule(final Config config) {
+                return getServiceModule(config);
+            }
+
+            @Override
+            public Module getServiceModule(final Config config) {
+                return new PlatformJmxModule();
+            }
+        };
+    }
 }
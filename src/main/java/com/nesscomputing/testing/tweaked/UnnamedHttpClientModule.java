@@ -44,6 +44,8 @@ public class UnnamedHttpClientModule extends AbstractModule
 
             Class httpClientClass = Class.forName("com.nesscomputing.httpclient.HttpClient");
             bind (httpClientClass).to(Key.get(httpClientClass, Names.named(TEST_NAME)));
+
+            HttpClientStatsObserver.bind(binder());
         } catch (Exception e) {
             LOG.infoDebug(e, "Could not create httpclient module");
         }
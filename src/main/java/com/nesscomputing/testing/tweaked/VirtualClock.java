@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * A clock that only moves when the test advances it. Every integration test rule has its own clock, which is bound in all service
+ * and test case injectors. With {@link TweakedModules#getVirtualClockModule()}, it is also bound as the Guava {@link Ticker}, so
+ * caches built with <code>CacheBuilder.ticker(...)</code> expire in virtual time.
+ *
+ * Work that is scheduled on the {@link #getScheduledExecutor() virtual executor} runs on the thread that advances the clock, as
+ * soon as it falls due.
+ *
+ * Every injector is bound to a view from {@link #forInjector(String)}, which shares the time and the pending work with this clock but
+ * records the injector as the owner of the work it schedules. The work of a service instance is cancelled with the instance.
+ */
+public final class VirtualClock extends Ticker
+{
+    private final long startMillis;
+
+    private final AtomicLong nanos;
+
+    private final Object advanceLock;
+
+    private final VirtualScheduledExecutor scheduledExecutor;
+
+    public VirtualClock()
+    {
+        this.startMillis = System.currentTimeMillis();
+        this.nanos = new AtomicLong();
+        this.advanceLock = new Object();
+        this.scheduledExecutor = new VirtualScheduledExecutor(this);
+    }
+
+    private VirtualClock(final VirtualClock clock, final String injectorName)
+    {
+        this.startMillis = clock.startMillis;
+        this.nanos = clock.nanos;
+        this.advanceLock = clock.advanceLock;
+        this.scheduledExecutor = clock.scheduledExecutor.forInjector(this, injectorName);
+    }
+
+    /**
+     * Returns a clock that shares the time and all scheduled work with this one. The work that it schedules belongs to the given injector.
+     */
+    public VirtualClock forInjector(@Nonnull final String injectorName)
+    {
+        Preconditions.checkNotNull(injectorName, "the injector name must not be null!");
+        return new VirtualClock(this, injectorName);
+    }
+
+    /**
+     * Nanoseconds since the clock was created, in virtual time.
+     */
+    @Override
+    public long read()
+    {
+        return nanos.get();
+    }
+
+    /**
+     * The current time in milliseconds since the epoch, in virtual time. The clock starts at the wall clock time of its creation.
+     */
+    public long currentTimeMillis()
+    {
+        return startMillis + TimeUnit.NANOSECONDS.toMillis(nanos.get());
+    }
+
+    /**
+     * An executor whose delays and periods are measured in virtual time.
+     */
+    public VirtualScheduledExecutor getScheduledExecutor()
+    {
+        return scheduledExecutor;
+    }
+
+    /**
+     * Moves the clock forward and runs all scheduled work that falls due, in order of due time. Each task sees the clock at its
+     * due time. Periodic tasks run as many times as they fall due. Concurrent calls advance the clock one after the other.
+     */
+    public void advance(final long duration, @Nonnull final TimeUnit unit)
+    {
+        Preconditions.checkArgument(duration >= 0, "the clock can not go backwards!");
+
+        synchronized (advanceLock) {
+            final long target = nanos.get() + unit.toNanos(duration);
+            scheduledExecutor.runDueTasks(target);
+            nanos.set(target);
+        }
+    }
+
+    /**
+     * Cancels the work that a single injector scheduled, called when the rule stops a service instance.
+     */
+    public void cancel(@Nonnull final String injectorName)
+    {
+        scheduledExecutor.shutdownNow(injectorName);
+    }
+
+    /**
+     * Sets the clock to a point in time, used by the executor while it runs the tasks that are due.
+     */
+    void set(final long nanos)
+    {
+        this.nanos.set(nanos);
+    }
+}
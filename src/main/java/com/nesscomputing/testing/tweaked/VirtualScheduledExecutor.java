@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.testing.tweaked;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * A scheduled executor that runs its tasks when the {@link VirtualClock} is advanced past their due time. Tasks run on the thread
+ * that advances the clock. Tasks that are submitted without a delay are due immediately and run on the next advance of the clock,
+ * which may be an advance by zero.
+ *
+ * The executor of a {@link VirtualClock#forInjector(String) clock view} shares the pending tasks with the executor of the clock, but
+ * it only sees, and shuts down, the tasks that were scheduled through it.
+ */
+public final class VirtualScheduledExecutor extends AbstractExecutorService implements ScheduledExecutorService
+{
+    private final VirtualClock clock;
+
+    private final PriorityQueue<VirtualTask<?>> tasks;
+    private final AtomicLong sequence;
+    private final List<VirtualScheduledExecutor> views;
+
+    /** The injector that owns the tasks of this executor, null for the executor of the clock itself which sees all tasks. */
+    private final String injectorName;
+
+    private volatile boolean shutdown = false;
+
+    VirtualScheduledExecutor(final VirtualClock clock)
+    {
+        this(clock, new PriorityQueue<VirtualTask<?>>(), new AtomicLong(), new CopyOnWriteArrayList<VirtualScheduledExecutor>(), null);
+    }
+
+    private VirtualScheduledExecutor(final VirtualClock clock,
+                                     final PriorityQueue<VirtualTask<?>> tasks,
+                                     final AtomicLong sequence,
+                                     final List<VirtualScheduledExecutor> views,
+                                     final String injectorName)
+    {
+        this.clock = clock;
+        this.tasks = tasks;
+        this.sequence = sequence;
+        this.views = views;
+        this.injectorName = injectorName;
+    }
+
+    /**
+     * Returns an executor that shares all tasks with this one. The tasks that it schedules belong to the given injector.
+     */
+    VirtualScheduledExecutor forInjector(final VirtualClock viewClock, final String injectorName)
+    {
+        final VirtualScheduledExecutor view = new VirtualScheduledExecutor(viewClock, tasks, sequence, views, injectorName);
+        views.add(view);
+        return view;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(@Nonnull final Runnable command, final long delay, @Nonnull final TimeUnit unit)
+    {
+        return enqueue(new VirtualTask<Void>(Executors.<Void>callable(command, null), dueIn(delay, unit), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(@Nonnull final Callable<V> callable, final long delay, @Nonnull final TimeUnit unit)
+    {
+        return enqueue(new VirtualTask<V>(callable, dueIn(delay, unit), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(@Nonnull final Runnable command, final long initialDelay, final long period, @Nonnull final TimeUnit unit)
+    {
+        Preconditions.checkArgument(period > 0, "the period must be positive!");
+        return enqueue(new VirtualTask<Void>(Executors.<Void>callable(command, null), dueIn(initialDelay, unit), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(@Nonnull final Runnable command, final long initialDelay, final long delay, @Nonnull final TimeUnit unit)
+    {
+        Preconditions.checkArgument(delay > 0, "the delay must be positive!");
+        // A task takes no virtual time, so a fixed delay is the same as a fixed rate.
+        return scheduleAtFixedRate(command, initialDelay, delay, unit);
+    }
+
+    @Override
+    public void execute(@Nonnull final Runnable command)
+    {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void shutdown()
+    {
+        shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        shutdown = true;
+        final List<Runnable> pending = Lists.newArrayList();
+        synchronized (tasks) {
+            for (final Iterator<VirtualTask<?>> it = tasks.iterator(); it.hasNext(); ) {
+                final VirtualTask<?> task = it.next();
+                if (owns(task)) {
+                    pending.add(task);
+                    it.remove();
+                }
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Shuts down the executors of a single injector and drops their pending tasks. A periodic task of the injector that is running
+     * right now is not scheduled again.
+     */
+    void shutdownNow(final String injectorName)
+    {
+        for (final VirtualScheduledExecutor view : views) {
+            if (injectorName.equals(view.injectorName)) {
+                view.shutdownNow();
+                views.remove(view);
+            }
+        }
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated()
+    {
+        return shutdown && getPendingTasks() == 0;
+    }
+
+    /**
+     * Pending tasks only run when the clock is advanced, so waiting does not help. Returns whether the executor has terminated.
+     */
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit)
+    {
+        return isTerminated();
+    }
+
+    /**
+     * Returns the number of tasks of this executor that wait for the clock.
+     */
+    public int getPendingTasks()
+    {
+        synchronized (tasks) {
+            if (injectorName == null) {
+                return tasks.size();
+            }
+            int pending = 0;
+            for (final VirtualTask<?> task : tasks) {
+                if (owns(task)) {
+                    pending++;
+                }
+            }
+            return pending;
+        }
+    }
+
+    /**
+     * Runs all tasks that are due up to the given clock value. New tasks that fall due in that time, e.g. from a task that schedules
+     * another one, run as well.
+     */
+    void runDueTasks(final long targetNanos)
+    {
+        while (true) {
+            final VirtualTask<?> task;
+            synchronized (tasks) {
+                if (tasks.isEmpty() || tasks.peek().dueNanos > targetNanos) {
+                    return;
+                }
+                task = tasks.poll();
+            }
+
+            if (task.dueNanos > clock.read()) {
+                clock.set(task.dueNanos);
+            }
+            task.run();
+        }
+    }
+
+    private boolean owns(final VirtualTask<?> task)
+    {
+        return injectorName == null || task.getExecutor() == this;
+    }
+
+    private long dueIn(final long delay, final TimeUnit unit)
+    {
+        return clock.read() + Math.max(0, unit.toNanos(delay));
+    }
+
+    private <V> VirtualTask<V> enqueue(final VirtualTask<V> task)
+    {
+        synchronized (tasks) {
+            if (shutdown) {
+                throw new RejectedExecutionException("The virtual executor has been shut down!");
+            }
+            tasks.add(task);
+        }
+        return task;
+    }
+
+    private final class VirtualTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V>
+    {
+        private final long periodNanos;
+        private final long sequenceNumber = sequence.getAndIncrement();
+        private volatile long dueNanos;
+
+        private VirtualTask(final Callable<V> callable, final long dueNanos, final long periodNanos)
+        {
+            super(callable);
+            this.dueNanos = dueNanos;
+            this.periodNanos = periodNanos;
+        }
+
+        private VirtualScheduledExecutor getExecutor()
+        {
+            return VirtualScheduledExecutor.this;
+        }
+
+        @Override
+        public boolean isPeriodic()
+        {
+            return periodNanos > 0;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit)
+        {
+            return unit.convert(dueNanos - clock.read(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed other)
+        {
+            if (other instanceof VirtualTask) {
+                final VirtualTask<?> task = (VirtualTask<?>) other;
+                if (dueNanos != task.dueNanos) {
+                    return dueNanos < task.dueNanos ? -1 : 1;
+                }
+                return Long.valueOf(sequenceNumber).compareTo(task.sequenceNumber);
+            }
+            return Long.valueOf(getDelay(TimeUnit.NANOSECONDS)).compareTo(other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public void run()
+        {
+            if (!isPeriodic()) {
+                super.run();
+            }
+            else if (runAndReset()) {
+                dueNanos += periodNanos;
+                // Checked under the lock, so that a shutdown while the task ran drops it for good.
+                synchronized (tasks) {
+                    if (!shutdown) {
+                        tasks.add(this);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning)
+        {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                synchronized (tasks) {
+                    tasks.remove(this);
+                }
+            }
+            return cancelled;
+        }
+    }
+}